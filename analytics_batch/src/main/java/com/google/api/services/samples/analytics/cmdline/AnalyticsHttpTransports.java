@@ -0,0 +1,173 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.googleapis.GoogleUtils;
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import org.apache.http.Header;
+import org.apache.http.HttpConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates the HTTP transport of the samples, selected by {@code regus.http.transport}:
+ * <ul>
+ * <li>{@code javanet} (the default), {@link GoogleNetHttpTransport} on {@code HttpURLConnection},
+ * whose connection reuse is up to the JDK's keep-alive cache.</li>
+ * <li>{@code apache}, {@link ApacheHttpTransport} with a pool of up to
+ * {@code regus.http.maxConnections} connections (default 20), kept alive for
+ * {@code regus.http.keepAliveSeconds} (default 30) unless the server says otherwise.</li>
+ * </ul>
+ * Responses are compressed with either: the client asks for gzip on every request and inflates the
+ * content itself.
+ * <p/>
+ * With {@code regus.http.measure} the apache transport counts the response bytes as received, how
+ * many responses were gzipped and how many requests went over a connection that was opened for an
+ * earlier one, see {@link #printMeasurements()}.
+ */
+class AnalyticsHttpTransports {
+    private static final String TRANSPORT = System.getProperty("regus.http.transport", "javanet");
+    private static final int MAX_CONNECTIONS = Integer.getInteger("regus.http.maxConnections", 20);
+    private static final long KEEP_ALIVE_SECONDS = Long.getLong("regus.http.keepAliveSeconds", 30);
+    private static final boolean MEASURE = Boolean.getBoolean("regus.http.measure");
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong reusedConnections = new AtomicLong();
+    private static final AtomicLong responses = new AtomicLong();
+    private static final AtomicLong gzippedResponses = new AtomicLong();
+    private static final AtomicLong wireBytes = new AtomicLong();
+
+    static HttpTransport newTransport() throws GeneralSecurityException, IOException {
+        if ("javanet".equals(TRANSPORT)) {
+            if (MEASURE) {
+                System.out.println("regus.http.measure only measures the apache transport");
+            }
+            return GoogleNetHttpTransport.newTrustedTransport();
+        }
+        if (!"apache".equals(TRANSPORT)) {
+            throw new IllegalArgumentException("Unknown regus.http.transport: " + TRANSPORT);
+        }
+        ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+                .trustCertificates(GoogleUtils.getCertificateTrustStore());
+        HttpParams params = builder.getHttpParams();
+        ConnManagerParams.setMaxTotalConnections(params, MAX_CONNECTIONS);
+        ConnManagerParams.setMaxConnectionsPerRoute(params, new ConnPerRouteBean(MAX_CONNECTIONS));
+        ApacheHttpTransport transport = builder.build();
+
+        DefaultHttpClient client = (DefaultHttpClient) transport.getHttpClient();
+        client.setKeepAliveStrategy(new ConnectionKeepAliveStrategy() {
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                Header keepAlive = response.getFirstHeader("Keep-Alive");
+                if (keepAlive != null && keepAlive.getValue().startsWith("timeout=")) {
+                    try {
+                        return Long.parseLong(keepAlive.getValue().substring(8).split(",")[0].trim()) * 1000;
+                    } catch (NumberFormatException e) {
+                        // fall back to our own
+                    }
+                }
+                return KEEP_ALIVE_SECONDS * 1000;
+            }
+        });
+        if (MEASURE) {
+            addMeasuringInterceptors(client);
+        }
+        return transport;
+    }
+
+    /**
+     * Prints what was measured, if measuring.
+     */
+    static void printMeasurements() {
+        if (!MEASURE || !"apache".equals(TRANSPORT)) {
+            return;
+        }
+        long requestCount = requests.get();
+        System.out.println("HTTP requests: " + requestCount + ", over reused connections: " + reusedConnections.get()
+                + (requestCount > 0 ? " (" + (100 * reusedConnections.get() / requestCount) + "%)" : ""));
+        System.out.println("HTTP responses: " + responses.get() + ", gzipped: " + gzippedResponses.get()
+                + ", response bytes on the wire: " + wireBytes.get());
+    }
+
+    private static void addMeasuringInterceptors(DefaultHttpClient client) {
+        client.addRequestInterceptor(new HttpRequestInterceptor() {
+            public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+                requests.incrementAndGet();
+                HttpConnection connection = (HttpConnection) context.getAttribute(ExecutionContext.HTTP_CONNECTION);
+                // the request being intercepted is not counted yet
+                if (connection != null && connection.getMetrics().getRequestCount() > 0) {
+                    reusedConnections.incrementAndGet();
+                }
+            }
+        });
+        client.addResponseInterceptor(new HttpResponseInterceptor() {
+            public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+                responses.incrementAndGet();
+                if (response.getEntity() == null) {
+                    return;
+                }
+                Header encoding = response.getEntity().getContentEncoding();
+                if (encoding != null && encoding.getValue().toLowerCase().contains("gzip")) {
+                    gzippedResponses.incrementAndGet();
+                }
+                response.setEntity(new HttpEntityWrapper(response.getEntity()) {
+                    @Override
+                    public InputStream getContent() throws IOException {
+                        return new CountingInputStream(super.getContent());
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Adds the bytes read through it to {@link #wireBytes}.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                wireBytes.incrementAndGet();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                wireBytes.addAndGet(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            wireBytes.addAndGet(skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Paces the Analytics API requests of a run so they stay within the per-profile quotas.
+ * <p/>
+ * Each request first takes a token from a bucket refilled at {@code requestsPerSecond}, then one of
+ * the in-flight slots. The number of slots adapts: it halves when the API answers with a rate limit
+ * 403 or a 5xx, at most once a second, and grows back by one slot per full window of successful
+ * requests, up to {@code maxInFlight}. Such a failed request is retried after an exponential backoff
+ * with random jitter, up to {@code maxRetries} times.
+ * <p/>
+ * The time requests spent waiting for a token, a slot or a backoff is added up over all threads in
+ * {@link #getThrottledMillis()}.
+ */
+class AnalyticsRequestGovernor {
+
+    /**
+     * A request, executed once per attempt.
+     */
+    interface Call<T> {
+        T call() throws IOException;
+    }
+
+    private static final long BACKOFF_BASE_MILLIS = 1000;
+    private static final long BACKOFF_MAX_MILLIS = 32000;
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxInFlight;
+    private final int maxRetries;
+    private final double tokensPerNano;
+    private final double burst;
+    private final Random jitter = new Random();
+
+    // token bucket, guarded by this
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    // in-flight window, guarded by slots
+    private final Object slots = new Object();
+    private double limit;
+    private int inFlight;
+    private long decreasedAt = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+
+    private final AtomicLong throttledNanos = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong throttledResponses = new AtomicLong();
+
+    AnalyticsRequestGovernor(double requestsPerSecond, int maxInFlight, int maxRetries) {
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.tokensPerNano = requestsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, requestsPerSecond);
+        this.tokens = burst;
+        this.limit = this.maxInFlight;
+    }
+
+    /**
+     * Creates a governor configured by {@code regus.quota.requestsPerSecond} (default 10),
+     * {@code regus.fetch.maxConcurrentRequests} (default 10, the API's limit per profile) and
+     * {@code regus.quota.maxRetries} (default 5).
+     */
+    static AnalyticsRequestGovernor fromSystemProperties() {
+        return new AnalyticsRequestGovernor(Double.parseDouble(System.getProperty("regus.quota.requestsPerSecond", "10")),
+                Integer.getInteger("regus.fetch.maxConcurrentRequests", 10), Integer.getInteger("regus.quota.maxRetries", 5));
+    }
+
+    /**
+     * Prints how much the requests were held back.
+     */
+    void printSummary() {
+        System.out.println("Throttled for " + getThrottledMillis() + " ms, " + getThrottledResponses()
+                + " rate limited responses, " + getRetries() + " retries");
+    }
+
+    <T> T execute(final AbstractGoogleClientRequest<T> request) throws IOException {
+        return execute(new Call<T>() {
+            public T call() throws IOException {
+                return request.execute();
+            }
+        });
+    }
+
+    /**
+     * Runs {@code call} within the quota, retrying it while the API reports rate limits or server
+     * errors. Only failures that happen before any of the response is consumed may be retried, which
+     * is the case for these, since they come with the status line.
+     */
+    <T> T execute(Call<T> call) throws IOException {
+        return execute(call, 1);
+    }
+
+    /**
+     * Like {@link #execute(Call)} for a call that sends {@code requests} API requests at once, such
+     * as a batch request. It takes a token for each of them but only one in-flight slot.
+     */
+    <T> T execute(Call<T> call, int requests) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            long waitStart = System.nanoTime();
+            takeTokens(requests);
+            acquireSlot();
+            throttledNanos.addAndGet(System.nanoTime() - waitStart);
+            boolean throttled = false;
+            try {
+                return call.call();
+            } catch (HttpResponseException e) {
+                throttled = isThrottled(e);
+                if (!throttled || attempt >= maxRetries) {
+                    throw e;
+                }
+                throttledResponses.incrementAndGet();
+                System.err.println("Analytics API answered " + e.getStatusCode() + ", retrying (attempt "
+                        + (attempt + 1) + " of " + maxRetries + ")");
+            } finally {
+                releaseSlot(throttled);
+            }
+            retries.incrementAndGet();
+            backOff(attempt);
+        }
+    }
+
+    long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    long getRetries() {
+        return retries.get();
+    }
+
+    long getThrottledResponses() {
+        return throttledResponses.get();
+    }
+
+    private void takeTokens(int count) throws IOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+            refilledAt = now;
+            // tokens taken on credit are paid for by waiting until they have been refilled
+            tokens -= count;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+        }
+        if (waitNanos > 0) {
+            sleep(TimeUnit.NANOSECONDS.toMillis(waitNanos) + 1);
+        }
+    }
+
+    private void acquireSlot() throws IOException {
+        synchronized (slots) {
+            while (inFlight >= (int) limit) {
+                try {
+                    slots.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for a request slot");
+                }
+            }
+            inFlight++;
+        }
+    }
+
+    private void releaseSlot(boolean throttled) {
+        synchronized (slots) {
+            inFlight--;
+            long now = System.nanoTime();
+            if (throttled) {
+                if (limit > 1 && now - decreasedAt >= DECREASE_INTERVAL_NANOS) {
+                    limit = Math.max(1, limit / 2);
+                    decreasedAt = now;
+                    System.err.println("Lowered concurrent Analytics API requests to " + (int) limit);
+                }
+            } else if (limit < maxInFlight) {
+                limit = Math.min(maxInFlight, limit + 1 / limit);
+            }
+            slots.notifyAll();
+        }
+    }
+
+    private void backOff(int attempt) throws IOException {
+        long delay = Math.min(BACKOFF_MAX_MILLIS, BACKOFF_BASE_MILLIS << Math.min(attempt, 16));
+        long jittered = delay + (long) (jitter.nextDouble() * BACKOFF_BASE_MILLIS);
+        long start = System.nanoTime();
+        sleep(jittered);
+        throttledNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private static void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while throttled");
+        }
+    }
+
+    /**
+     * Returns whether the response says to slow down: a 403 for a rate or quota limit, or a server
+     * error.
+     */
+    static boolean isThrottled(HttpResponseException e) {
+        if (e.getStatusCode() >= 500) {
+            return true;
+        }
+        if (e.getStatusCode() != 403 || !(e instanceof GoogleJsonResponseException)) {
+            return false;
+        }
+        GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+        if (details == null || details.getErrors() == null) {
+            return false;
+        }
+        for (GoogleJsonError.ErrorInfo error : details.getErrors()) {
+            String reason = error.getReason();
+            if ("userRateLimitExceeded".equals(reason) || "rateLimitExceeded".equals(reason)
+                    || "quotaExceeded".equals(reason)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,172 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.analytics.Analytics;
+import com.google.api.services.analytics.model.GaData;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Fetches the first pages of several Core Reporting queries with batch requests, one HTTP round trip
+ * for up to {@value #MAX_BATCH_SIZE} of them, and holds each response until the query is executed.
+ * <p/>
+ * A page is keyed by its request URL, so {@link #take} finds it for the same query built again by
+ * the code that reads the report. A query the batch could not answer, e.g. because it was rate
+ * limited, is simply not held and gets executed on its own later.
+ * <p/>
+ * The pages fetched for a key are held until every part that uses them is released, so that a page
+ * never taken, e.g. of a report the run resumes past its first page, does not stay in memory. A part
+ * that asks for a key while another part is still fetching its batches waits for them.
+ */
+class BatchedFirstPages {
+    private static final int MAX_BATCH_SIZE = 50;
+
+    private final Analytics analytics;
+    private final AnalyticsRequestGovernor governor;
+    private final ConcurrentMap<String, GaData> pages = new ConcurrentHashMap<String, GaData>();
+    private final Map<String, Prefetch> prefetches = new HashMap<String, Prefetch>();
+
+    /**
+     * The batches of one key. The fields are guarded by {@code prefetches}.
+     */
+    private static class Prefetch {
+        final CountDownLatch fetched = new CountDownLatch(1);
+        final List<String> urls = new ArrayList<String>();
+        // parts not released yet
+        int parts;
+
+        Prefetch(int parts) {
+            this.parts = parts;
+        }
+    }
+
+    BatchedFirstPages(Analytics analytics, AnalyticsRequestGovernor governor) {
+        this.analytics = analytics;
+        this.governor = governor;
+    }
+
+    /**
+     * Returns a batch request for the Core Reporting API. {@link Analytics#batch()} posts to the
+     * global batch endpoint, which Google has shut down, so the API's own endpoint is set.
+     */
+    static BatchRequest newBatch(Analytics analytics) {
+        return analytics.batch().setBatchUrl(new GenericUrl(analytics.getRootUrl() + "batch/analytics/v3"));
+    }
+
+    /**
+     * Fetches the responses to {@code gets} in batches, unless this was already done for
+     * {@code key}, in which case it waits until those batches are done. The responses are held until
+     * {@link #release} was called {@code parts} times for {@code key}, once by each part that reads
+     * them.
+     */
+    void prefetch(String key, int parts, List<Analytics.Data.Ga.Get> gets) throws IOException {
+        Prefetch prefetch;
+        boolean fetching;
+        synchronized (prefetches) {
+            prefetch = prefetches.get(key);
+            fetching = prefetch == null;
+            if (fetching) {
+                prefetch = new Prefetch(parts);
+                prefetches.put(key, prefetch);
+            }
+        }
+        if (!fetching) {
+            try {
+                prefetch.fetched.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the first pages of " + key);
+            }
+            return;
+        }
+        try {
+            fetch(prefetch, gets);
+        } finally {
+            // also when a batch failed, whose queries are then executed on their own
+            prefetch.fetched.countDown();
+        }
+    }
+
+    private void fetch(Prefetch prefetch, List<Analytics.Data.Ga.Get> gets) throws IOException {
+        for (int from = 0; from < gets.size(); from += MAX_BATCH_SIZE) {
+            final List<Analytics.Data.Ga.Get> chunk = gets.subList(from, Math.min(gets.size(), from + MAX_BATCH_SIZE));
+            if (chunk.size() == 1) {
+                // a batch of one is just a slower request, leave it to the caller
+                continue;
+            }
+            synchronized (prefetches) {
+                for (Analytics.Data.Ga.Get get : chunk) {
+                    prefetch.urls.add(get.buildHttpRequestUrl().build());
+                }
+            }
+            governor.execute(new AnalyticsRequestGovernor.Call<Void>() {
+                public Void call() throws IOException {
+                    BatchRequest batch = newBatch(analytics);
+                    for (Analytics.Data.Ga.Get get : chunk) {
+                        final String url = get.buildHttpRequestUrl().build();
+                        get.queue(batch, new JsonBatchCallback<GaData>() {
+                            @Override
+                            public void onSuccess(GaData gaData, HttpHeaders responseHeaders) {
+                                pages.put(url, gaData);
+                            }
+
+                            @Override
+                            public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+                                System.err.println("Batched query failed, it will be executed on its own: "
+                                        + e.getCode() + " " + e.getMessage());
+                            }
+                        });
+                    }
+                    batch.execute();
+                    return null;
+                }
+            }, chunk.size());
+        }
+    }
+
+    /**
+     * Returns the prefetched response to {@code get} and forgets it, or {@code null} if there is none.
+     */
+    GaData take(Analytics.Data.Ga.Get get) {
+        if (pages.isEmpty()) {
+            return null;
+        }
+        return pages.remove(get.buildHttpRequestUrl().build());
+    }
+
+    /**
+     * Records that a part reading the pages of {@code key} is done, and drops the pages not taken
+     * once every part is.
+     */
+    void release(String key) {
+        List<String> urls;
+        synchronized (prefetches) {
+            Prefetch prefetch = prefetches.get(key);
+            if (prefetch == null || prefetch.parts == 0) {
+                return;
+            }
+            prefetch.parts--;
+            if (prefetch.parts > 0) {
+                return;
+            }
+            // the key stays, so that its pages are not fetched again
+            urls = new ArrayList<String>(prefetch.urls);
+            prefetch.urls.clear();
+        }
+        for (String url : urls) {
+            pages.remove(url);
+        }
+    }
+}
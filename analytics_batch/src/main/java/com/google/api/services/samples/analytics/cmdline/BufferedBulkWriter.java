@@ -0,0 +1,173 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects documents and writes them to a collection as unordered bulk operations: plain inserts,
+ * or with an {@code upsertKey} a replace-or-insert keyed by that field of each document, such as
+ * {@code _id}. A document is added under its day, which a collection has no use for.
+ * <p/>
+ * A batch is sent once {@code batchSize} documents are buffered, when the oldest buffered document
+ * has waited {@code flushIntervalMillis}, and on {@link #flush()} or {@link #close()}. Documents the
+ * server rejects are reported one by one and counted in {@link #getFailedCount()}; the rest of the
+ * batch is still written. Any other failure, such as a lost connection, is thrown to the caller of
+ * the next {@link #add}, {@link #flush()} or {@link #close()}.
+ * <p/>
+ * Every bulk write is timed in {@code writes}, with its documents as the items.
+ */
+class BufferedBulkWriter implements DocumentSink {
+    private static final ScheduledExecutorService FLUSH_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "bulk-writer-flush");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final DBCollection collection;
+    private final int batchSize;
+    private final WriteConcern writeConcern;
+    private final String upsertKey;
+    private final IngestMetrics.StageTimer writes;
+    private final ScheduledFuture<?> timedFlush;
+
+    private List<DBObject> buffer;
+    private long oldestBufferedAt;
+    private long writtenCount;
+    private long failedCount;
+    private RuntimeException timedFlushFailure;
+
+    /**
+     * @param upsertKey the field documents are replaced by, or {@code null} to insert them.
+     */
+    BufferedBulkWriter(DBCollection collection, int batchSize, final long flushIntervalMillis, WriteConcern writeConcern,
+                       String upsertKey, IngestMetrics.StageTimer writes) {
+        this.collection = collection;
+        this.upsertKey = upsertKey;
+        this.writes = writes;
+        this.batchSize = Math.max(1, batchSize);
+        this.writeConcern = writeConcern;
+        this.buffer = new ArrayList<DBObject>(this.batchSize);
+        if (flushIntervalMillis > 0) {
+            timedFlush = FLUSH_TIMER.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    flushIfOlderThan(flushIntervalMillis);
+                }
+            }, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            timedFlush = null;
+        }
+    }
+
+    /**
+     * Parses a write concern name such as {@code ACKNOWLEDGED}, {@code JOURNALED} or {@code MAJORITY}.
+     */
+    static WriteConcern writeConcern(String name) {
+        WriteConcern writeConcern = WriteConcern.valueOf(name.toUpperCase());
+        if (writeConcern == null) {
+            throw new IllegalArgumentException("Unknown write concern: " + name);
+        }
+        return writeConcern;
+    }
+
+    public synchronized void add(Date day, DBObject document) {
+        rethrowTimedFlushFailure();
+        if (buffer.isEmpty()) {
+            oldestBufferedAt = System.currentTimeMillis();
+        }
+        buffer.add(document);
+        if (buffer.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    public synchronized void flush() {
+        rethrowTimedFlushFailure();
+        if (buffer.isEmpty()) {
+            return;
+        }
+        List<DBObject> batch = buffer;
+        buffer = new ArrayList<DBObject>(batchSize);
+
+        BulkWriteOperation bulk = collection.initializeUnorderedBulkOperation();
+        for (DBObject document : batch) {
+            if (upsertKey != null) {
+                bulk.find(new BasicDBObject(upsertKey, document.get(upsertKey))).upsert().replaceOne(document);
+            } else {
+                bulk.insert(document);
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            bulk.execute(writeConcern);
+            writtenCount += batch.size();
+        } catch (BulkWriteException e) {
+            List<BulkWriteError> errors = e.getWriteErrors();
+            writtenCount += batch.size() - errors.size();
+            failedCount += errors.size();
+            System.err.println(errors.size() + " of " + batch.size() + " documents failed to write to " + collection);
+            for (BulkWriteError error : errors) {
+                System.err.println("  " + error.getCode() + " " + error.getMessage() + ": " + batch.get(error.getIndex()));
+            }
+            if (e.getWriteConcernError() != null) {
+                System.err.println("  write concern error: " + e.getWriteConcernError().getMessage());
+            }
+        }
+        writes.record(start, batch.size());
+    }
+
+    public synchronized void close() {
+        if (timedFlush != null) {
+            timedFlush.cancel(false);
+        }
+        flush();
+    }
+
+    public synchronized long getWrittenCount() {
+        return writtenCount;
+    }
+
+    public synchronized long getFailedCount() {
+        return failedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(collection);
+    }
+
+    private synchronized void flushIfOlderThan(long flushIntervalMillis) {
+        if (timedFlushFailure != null || buffer.isEmpty()
+                || System.currentTimeMillis() - oldestBufferedAt < flushIntervalMillis) {
+            return;
+        }
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            timedFlushFailure = e;
+        }
+    }
+
+    private void rethrowTimedFlushFailure() {
+        if (timedFlushFailure != null) {
+            RuntimeException failure = timedFlushFailure;
+            timedFlushFailure = null;
+            throw failure;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory copy of the {@code center_mapping} collection, mapping {@code CentreURLName} to
+ * {@code CentreID}, so looking up the centre of a page path needs no database read.
+ * <p/>
+ * The whole collection is loaded when the index is created and reloaded on a background thread
+ * every {@code ttlMinutes}. A reload swaps in a new map, so lookups never wait for it.
+ */
+class CenterMappingIndex {
+    private final DBCollection centerMapping;
+    private final ScheduledExecutorService refresher;
+    private volatile Map<String, String> centreIds;
+
+    CenterMappingIndex(DBCollection centerMapping, long ttlMinutes) {
+        this.centerMapping = centerMapping;
+        this.centreIds = load();
+        this.refresher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "center-mapping-refresh");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (ttlMinutes > 0) {
+            refresher.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        centreIds = load();
+                    } catch (RuntimeException e) {
+                        System.err.println("Reloading center mapping failed, keeping the previous one");
+                        e.printStackTrace();
+                    }
+                }
+            }, ttlMinutes, ttlMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Creates an index over a fixed mapping, which is never reloaded.
+     */
+    CenterMappingIndex(Map<String, String> centreIds) {
+        this.centerMapping = null;
+        this.refresher = null;
+        this.centreIds = centreIds;
+    }
+
+    /**
+     * Returns the centre id for the part of a page path after {@code locations/<product>/}, or an
+     * empty string if there is none. Trailing path segments that are not part of a centre URL name,
+     * such as {@code london-city/meeting-rooms}, are dropped one at a time until a centre matches.
+     */
+    String lookUp(String centerLookUp) {
+        Map<String, String> ids = centreIds;
+        String candidate = centerLookUp;
+        while (candidate.length() > 0) {
+            String centreId = ids.get(candidate);
+            if (centreId != null) {
+                return centreId;
+            }
+            int slash = candidate.lastIndexOf('/');
+            if (slash < 0) {
+                break;
+            }
+            candidate = candidate.substring(0, slash);
+        }
+        return "";
+    }
+
+    int size() {
+        return centreIds.size();
+    }
+
+    void close() {
+        if (refresher != null) {
+            refresher.shutdownNow();
+        }
+    }
+
+    private Map<String, String> load() {
+        Map<String, String> ids = new HashMap<String, String>();
+        DBCursor cursor = centerMapping.find(new BasicDBObject(),
+                new BasicDBObject("CentreURLName", 1).append("CentreID", 1));
+        try {
+            while (cursor.hasNext()) {
+                DBObject centre = cursor.next();
+                Object name = centre.get("CentreURLName");
+                Object id = centre.get("CentreID");
+                // the first match wins, like the find() this replaces
+                if (name != null && id != null && !ids.containsKey(name.toString())) {
+                    ids.put(name.toString(), id.toString());
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        System.out.println("Loaded " + ids.size() + " centres from " + centerMapping);
+        return ids;
+    }
+}
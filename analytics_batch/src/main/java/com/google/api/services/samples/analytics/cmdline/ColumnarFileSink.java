@@ -0,0 +1,260 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes documents to files column by column, so that a scan of a few fields over many days reads
+ * only those fields' files and no database. The files of a table are partitioned by day:
+ * <pre>
+ *   dir/table/date=yyyy-MM-dd/part-run-n/field.gz
+ *   dir/table/date=yyyy-MM-dd/part-run-n/_fields.json
+ * </pre>
+ * Every field of a part is a gzipped text file with one line per document, the n-th line of each
+ * file belonging to the n-th document. A field a document lacks, or that is null, is {@code \N};
+ * backslashes, newlines and carriage returns in a value are escaped as {@code \\}, {@code \n} and
+ * {@code \r}, and nested documents and lists are written as JSON. {@code _fields.json} lists the
+ * fields with their files and holds the number of rows.
+ * <p/>
+ * A part is written under a hidden name and renamed into place on {@link #flush()}, so readers only
+ * ever see complete parts and everything flushed is kept when the run stops. The next document of
+ * the day starts a new part. Unless appending, the first part of a day removes the parts earlier
+ * runs left in its partition, so a day ingested again is replaced rather than added to; it has none
+ * until the first flush.
+ * <p/>
+ * Every committed part is timed in {@code writes}, the time spent writing its documents and
+ * committing it, with its documents as the items.
+ */
+class ColumnarFileSink implements DocumentSink {
+    private static final String RUN = new ObjectId().toString();
+    private static final AtomicInteger PARTS = new AtomicInteger();
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final File tableDir;
+    private final boolean append;
+    private final IngestMetrics.StageTimer writes;
+    // partition -> its open part
+    private final Map<String, Part> openParts = new LinkedHashMap<String, Part>();
+    private final Set<String> replacedPartitions = new HashSet<String>();
+    private long writtenCount;
+
+    /**
+     * @param append whether to keep the parts earlier runs left in a partition.
+     */
+    ColumnarFileSink(File dir, String table, boolean append, IngestMetrics.StageTimer writes) {
+        this.tableDir = new File(dir, table);
+        this.append = append;
+        this.writes = writes;
+    }
+
+    public synchronized void add(Date day, DBObject document) {
+        String partition = "date=" + new SimpleDateFormat("yyyy-MM-dd").format(day);
+        try {
+            Part part = openParts.get(partition);
+            if (part == null) {
+                part = new Part(openPartition(partition));
+                openParts.put(partition, part);
+            }
+            long start = System.nanoTime();
+            part.add(document);
+            part.writingNanos += System.nanoTime() - start;
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot write to " + new File(tableDir, partition), e);
+        }
+    }
+
+    public synchronized void flush() {
+        try {
+            for (Part part : openParts.values()) {
+                long start = System.nanoTime();
+                part.commit();
+                writtenCount += part.rows;
+                // the part's documents were written before, in between the adds
+                writes.record(start - part.writingNanos, part.rows);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot commit a part under " + tableDir, e);
+        } finally {
+            openParts.clear();
+        }
+    }
+
+    public synchronized void close() {
+        flush();
+    }
+
+    public synchronized long getWrittenCount() {
+        return writtenCount;
+    }
+
+    public long getFailedCount() {
+        return 0;
+    }
+
+    @Override
+    public String toString() {
+        return tableDir.getPath();
+    }
+
+    /**
+     * Returns the directory of {@code partition}, emptied of earlier parts unless appending.
+     */
+    private File openPartition(String partition) throws IOException {
+        File partitionDir = new File(tableDir, partition);
+        if (!append && replacedPartitions.add(partition)) {
+            File[] earlier = partitionDir.listFiles();
+            if (earlier != null) {
+                for (File part : earlier) {
+                    deleteTree(part);
+                }
+            }
+        }
+        if (!partitionDir.isDirectory() && !partitionDir.mkdirs()) {
+            throw new IOException("Cannot create " + partitionDir);
+        }
+        return partitionDir;
+    }
+
+    private static void deleteTree(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        if (!file.delete()) {
+            throw new IOException("Cannot delete " + file);
+        }
+    }
+
+    /**
+     * The part being written to in one partition.
+     */
+    private static class Part {
+        private final File partitionDir;
+        private final String name = "part-" + RUN + "-" + PARTS.incrementAndGet();
+        private final File inProgress;
+        // field -> its column
+        private final Map<String, Column> columns = new LinkedHashMap<String, Column>();
+        private final Set<String> files = new HashSet<String>();
+        private long rows;
+        private long writingNanos;
+
+        Part(File partitionDir) throws IOException {
+            this.partitionDir = partitionDir;
+            this.inProgress = new File(partitionDir, "." + name + ".inprogress");
+            if (!inProgress.mkdir()) {
+                throw new IOException("Cannot create " + inProgress);
+            }
+        }
+
+        void add(DBObject document) throws IOException {
+            for (String field : document.keySet()) {
+                if (!columns.containsKey(field)) {
+                    Column column = new Column(new File(inProgress, fileName(field)));
+                    // earlier documents did not have the field
+                    for (long row = 0; row < rows; row++) {
+                        column.write(null);
+                    }
+                    columns.put(field, column);
+                }
+            }
+            for (Map.Entry<String, Column> column : columns.entrySet()) {
+                column.getValue().write(document.get(column.getKey()));
+            }
+            rows++;
+        }
+
+        void commit() throws IOException {
+            JsonGenerator fields = JSON.createGenerator(new File(inProgress, "_fields.json"), JsonEncoding.UTF8);
+            try {
+                fields.writeStartObject();
+                fields.writeNumberField("rows", rows);
+                fields.writeArrayFieldStart("fields");
+                for (Map.Entry<String, Column> column : columns.entrySet()) {
+                    column.getValue().close();
+                    fields.writeStartObject();
+                    fields.writeStringField("name", column.getKey());
+                    fields.writeStringField("file", column.getValue().file.getName());
+                    fields.writeEndObject();
+                }
+                fields.writeEndArray();
+                fields.writeEndObject();
+            } finally {
+                fields.close();
+            }
+            File committed = new File(partitionDir, name);
+            if (!inProgress.renameTo(committed)) {
+                throw new IOException("Cannot rename " + inProgress + " to " + committed);
+            }
+        }
+
+        /**
+         * Returns a file name for {@code field} that is safe on any file system and unique in the part.
+         */
+        private String fileName(String field) {
+            String base = field.replaceAll("[^A-Za-z0-9_.-]", "_");
+            String fileName = base + ".gz";
+            for (int n = 2; !files.add(fileName); n++) {
+                fileName = base + "_" + n + ".gz";
+            }
+            return fileName;
+        }
+    }
+
+    /**
+     * The file of one field of a part.
+     */
+    private static class Column {
+        private final File file;
+        private final Writer out;
+
+        Column(File file) throws IOException {
+            this.file = file;
+            this.out = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(file)), "UTF-8"));
+        }
+
+        void write(Object value) throws IOException {
+            if (value == null) {
+                out.write("\\N\n");
+                return;
+            }
+            String text = value.toString();
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '\\') {
+                    out.write("\\\\");
+                } else if (c == '\n') {
+                    out.write("\\n");
+                } else if (c == '\r') {
+                    out.write("\\r");
+                } else {
+                    out.write(c);
+                }
+            }
+            out.write('\n');
+        }
+
+        void close() throws IOException {
+            out.close();
+        }
+    }
+}
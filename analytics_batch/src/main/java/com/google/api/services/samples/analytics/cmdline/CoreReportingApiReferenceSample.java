@@ -18,8 +18,8 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -34,14 +34,20 @@ import com.google.api.services.analytics.model.GaData.Query;
 import com.google.common.collect.Lists;
 import com.mongodb.*;
 import org.apache.commons.lang3.time.DateUtils;
+import org.bson.types.ObjectId;
 import org.json.JSONException;
-import org.mortbay.util.ajax.JSON;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.apache.commons.lang3.StringUtils.*;
 
@@ -70,16 +76,198 @@ public class CoreReportingApiReferenceSample {
      */
     private static final String TABLE_ID = "ga:88176229";
 
+    /**
+     * Root URL of the Analytics API, for a local stand-in such as {@code GaApiStandIn} of the
+     * benchmarks module. Requests to it are not authorized. Unset, the real API is used.
+     */
+    private static final String API_ROOT_URL = System.getProperty("regus.api.rootUrl");
+
+    /**
+     * The MongoDB server and database the reports are written to.
+     */
+    private static final String MONGO_HOST = System.getProperty("regus.mongo.host", "localhost");
+    private static final int MONGO_PORT = Integer.getInteger("regus.mongo.port", 27017);
+    private static final String MONGO_DB = System.getProperty("regus.mongo.db", "regus_analytics");
+
     /**
      * Directory to store user credentials.
      */
     private static final java.io.File DATA_STORE_DIR =
             new java.io.File(System.getProperty("user.home"), ".store/analytics_sample");
-    private static final String VISIT_ATTRIBUTES_METRICS = "ga:pageviews,ga:sessionDuration";
-    private static final String VISIT_ATTRIBUTES_DIMENSIONS = "ga:dimension11,ga:dimension2,ga:dimension3,ga:pagePath,ga:source,ga:medium";
+    private static final String COMPANY_VISITOR_FILTER = "ga:dimension11!=(Non-Company Visitor)";
     private static Date startDate = DateUtils.addDays(new Date(), -1); //new SimpleDateFormat("yyyy-MM-dd").format(DateUtils.addDays(new Date(), -1));
     private static Date endDate = DateUtils.addDays(new Date(), -1);
 
+    /**
+     * Number of days ingested at the same time. The default of 1 walks the date range one day at a
+     * time; anything higher runs a parallel backfill, see {@link DateRangeBackfill}.
+     */
+    private static final int BACKFILL_PARALLELISM = Integer.getInteger("regus.backfill.parallelism", 1);
+
+    /**
+     * Number of consecutive days read with a single {@code ga:date} query, see
+     * {@link MultiDayQueryPlanner}. The default of 1 queries each day on its own; anything higher
+     * reads the days in order, one span after another, instead of with a parallel backfill. Spans
+     * that come back sampled or with more than {@code regus.plan.maxRowsPerQuery} rows are split.
+     */
+    private static final int MAX_DAYS_PER_QUERY = Integer.getInteger("regus.plan.maxDaysPerQuery", 1);
+    private static final int MAX_ROWS_PER_QUERY = Integer.getInteger("regus.plan.maxRowsPerQuery", 100000);
+
+    /**
+     * Number of pages fetched ahead while the current page is written, see
+     * {@link PipelinedGaPageReader}. 0 fetches each page only after the previous one is written.
+     */
+    private static final int PREFETCH_PAGES = Integer.getInteger("regus.fetch.prefetchPages", 2);
+
+    /**
+     * Number of pages of one query requested concurrently once the first page is in, see
+     * {@link ParallelOffsetGaPageReader}. 0 (the default) leaves it off; when set it takes precedence
+     * over {@code regus.fetch.prefetchPages}.
+     */
+    private static final int PARALLEL_PAGES = Integer.getInteger("regus.fetch.parallelPages", 0);
+
+    /**
+     * Upper bound on the page requests in flight across all queries. The Core Reporting API allows 10
+     * concurrent requests per profile.
+     */
+    private static final int MAX_CONCURRENT_PAGE_REQUESTS = Integer.getInteger("regus.fetch.maxConcurrentRequests", 10);
+
+    /**
+     * Paces every Core Reporting request of the run, see {@link AnalyticsRequestGovernor}.
+     */
+    private static final AnalyticsRequestGovernor GOVERNOR = AnalyticsRequestGovernor.fromSystemProperties();
+
+    /**
+     * File the timings of every ingestion stage are written to at the end of the run, see
+     * {@link IngestMetrics}; empty for none. They are published over JMX unless
+     * {@code regus.metrics.jmx} is {@code false}.
+     */
+    private static final String METRICS_FILE = System.getProperty("regus.metrics.file", "ingest-metrics.json");
+    private static final IngestMetrics METRICS =
+            new IngestMetrics(Boolean.parseBoolean(System.getProperty("regus.metrics.jmx", "true")));
+
+    /**
+     * Whether visit attribute rows are decoded from the response and written one at a time instead
+     * of materializing each page first, see {@link StreamingGaDataDecoder}. Pages of a query are then
+     * fetched one after another, so this takes precedence over the prefetch and parallel page
+     * settings for visit attributes.
+     */
+    private static final boolean STREAM_VISIT_ATTRIBUTES = Boolean.getBoolean("regus.fetch.streaming");
+
+    /**
+     * Whether the first pages of all of a day's reports are fetched together with batch requests
+     * before the day is read, see {@link BatchedFirstPages}. Streamed visit attributes are not, and
+     * nothing is with a response cache, which answers replays without any request.
+     */
+    private static final boolean BATCH_FIRST_PAGES = Boolean.getBoolean("regus.fetch.batchFirstPages");
+
+    /**
+     * Whether to resume an interrupted run, see {@link IngestCheckpointStore}. Days completed by an
+     * earlier run are skipped and the others continue at their first unwritten page. Without it,
+     * every day is read from its first page.
+     */
+    private static final boolean RESUME = Boolean.getBoolean("regus.resume");
+
+    /**
+     * Names under which the progress of each query is checkpointed.
+     */
+    private static final String VISITED_COMPANIES_QUERY = "visited_companies";
+    private static final String VISIT_ATTRIBUTES_QUERY = "visit_attributes";
+
+    /**
+     * Collection of the daily sums of the visit attributes, see {@link VisitAttributesDailyRollup},
+     * and the name their writes are timed under.
+     */
+    private static final String VISIT_ATTRIBUTES_DAILY_COLLECTION = "visit_attrs_daily";
+    private static final String VISIT_ATTRIBUTES_DAILY_QUERY = "visit_attributes_daily";
+
+    /**
+     * The built-in reports, whose rows get written by {@link #insertVisitedCompaniesData} and
+     * {@link VisitAttributesRows}. They share their queries, filters and checkpoints with the
+     * {@link ReportEngine} reports but not its ingestion: visited companies are written one day after
+     * another with their first visit dates resolved, and visit attributes split sampled days into
+     * hours, may be streamed and feed the daily rollup, none of which the engine does.
+     */
+    private static final ReportDefinition VISITED_COMPANIES_REPORT = new ReportDefinition(VISITED_COMPANIES_QUERY,
+            "ga:visits", "ga:dimension20", COMPANY_VISITOR_FILTER, "ga");
+    private static final ReportDefinition VISIT_ATTRIBUTES_REPORT = new ReportDefinition(VISIT_ATTRIBUTES_QUERY,
+            "ga:pageviews,ga:sessionDuration", "ga:dimension11,ga:dimension2,ga:dimension3,ga:pagePath,ga:source,ga:medium",
+            COMPANY_VISITOR_FILTER, "visit_attrs");
+
+    /**
+     * JSON file with further reports to ingest for every day, see {@link ReportDefinition#load}, and
+     * how many of them run at once, see {@link ReportEngine}.
+     */
+    private static final String REPORTS_FILE = System.getProperty("regus.reports.file");
+    private static final int REPORTS_PARALLELISM = Integer.getInteger("regus.reports.parallelism", 2);
+
+    /**
+     * Whether re-ingesting a day also removes the visit attributes of that day that earlier runs
+     * wrote and this run did not, e.g. rows written before documents had deterministic ids. The
+     * day's rows are upserted with a run marker and the unmarked ones are removed with a single
+     * delete once the day is complete, so the day is never empty in between. The delete is skipped
+     * when any of the day's rows failed to be written, since such a row keeps its old, unmarked
+     * document.
+     * <p/>
+     * This is not an atomic swap: until the delete, readers see the day's new rows next to the old
+     * ones this run did not write again. A staged collection renamed into place would replace every
+     * day of {@code visit_attrs}, not one, and the driver has no transactions to swap a day's
+     * documents in one step.
+     */
+    private static final boolean REPLACE_VISIT_ATTRIBUTES_DAY = Boolean.getBoolean("regus.visitAttrs.replaceDay");
+
+    /**
+     * Whether a day whose visit attributes come back sampled is re-queried in {@code ga:hour}
+     * slices, see {@link SampledQuerySplitter}. When off, sampled pages are skipped.
+     */
+    private static final boolean SPLIT_SAMPLED_VISIT_ATTRIBUTES =
+            Boolean.parseBoolean(System.getProperty("regus.visitAttrs.splitSampled", "true"));
+
+    /**
+     * How often the in-memory copy of {@code center_mapping} is reloaded, see
+     * {@link CenterMappingIndex}. 0 loads it once per run.
+     */
+    private static final long CENTER_MAPPING_TTL_MINUTES = Long.getLong("regus.centerMapping.ttlMinutes", 60);
+
+    /**
+     * How many distinct page paths {@link PagePathNormalizer} remembers the parts of.
+     */
+    private static final int PAGE_PATH_MEMO_SIZE = Integer.getInteger("regus.pagePath.memoSize", 10000);
+
+    /**
+     * How visit attributes are written to {@code visit_attrs}, see {@link BufferedBulkWriter}: the
+     * number of documents per bulk insert, the longest a buffered document waits before it is sent
+     * (0 waits for a full batch) and the write concern name, e.g. ACKNOWLEDGED, JOURNALED or MAJORITY.
+     */
+    private static final int VISIT_ATTRIBUTES_BATCH_SIZE = Integer.getInteger("regus.visitAttrs.batchSize", 1000);
+    private static final long VISIT_ATTRIBUTES_FLUSH_INTERVAL_MILLIS = Long.getLong("regus.visitAttrs.flushIntervalMillis", 5000);
+    private static final WriteConcern VISIT_ATTRIBUTES_WRITE_CONCERN =
+            BufferedBulkWriter.writeConcern(System.getProperty("regus.visitAttrs.writeConcern", "ACKNOWLEDGED"));
+
+    /**
+     * Where visit attributes, visited companies and reports are written, see
+     * {@link DocumentSinks#fromSystemProperties}: their collections, columnar files partitioned by
+     * day, or both. Visited companies always go to their collection too, since the first visit date
+     * of a company is looked up there. When resuming, the files of a day are added to.
+     */
+    private static final DocumentSinks SINKS = DocumentSinks.fromSystemProperties(RESUME);
+
+    /**
+     * The most visited companies written to {@code ga} with one bulk write, a full page.
+     */
+    private static final int VISITED_COMPANIES_BATCH_SIZE = 10000;
+
+    /**
+     * How runs resolve and write visited companies: the most first visit dates
+     * {@link FirstVisitIndex} keeps in memory before the rest spill to files in
+     * {@code regus.firstVisits.spillDir} (default the temporary directory), and the most companies
+     * {@link VisitedCompaniesBuffer} of multi-day runs holds before writing them.
+     */
+    private static final int FIRST_VISITS_MAX_IN_MEMORY = Integer.getInteger("regus.firstVisits.maxInMemory", 1000000);
+    private static final java.io.File FIRST_VISITS_SPILL_DIR = new java.io.File(
+            System.getProperty("regus.firstVisits.spillDir", System.getProperty("java.io.tmpdir")));
+    private static final int VISITED_COMPANIES_MAX_BUFFERED = Integer.getInteger("regus.visitedCompanies.maxBuffered", 50000);
+
     /**
      * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
      * globally shared instance across your application.
@@ -96,6 +284,32 @@ public class CoreReportingApiReferenceSample {
      */
     private static final JsonFactory JSON_FACTORY = new JacksonFactory();
 
+    /**
+     * Decodes responses row by row when {@code regus.fetch.streaming} is on.
+     */
+    private static final StreamingGaDataDecoder STREAMING_DECODER = new StreamingGaDataDecoder(JSON_FACTORY);
+
+    /**
+     * Shared by the visit attributes of every day, whose page paths mostly repeat.
+     */
+    private static final PagePathNormalizer PAGE_PATHS = new PagePathNormalizer(PAGE_PATH_MEMO_SIZE);
+
+    /**
+     * Cache of raw API responses, see {@link GaResponseCache}. Only used when
+     * {@code regus.cache.dir} is set.
+     */
+    private static GaResponseCache RESPONSE_CACHE;
+
+    /**
+     * First pages fetched by batch requests, only used when {@code regus.fetch.batchFirstPages} is on.
+     */
+    private static BatchedFirstPages FIRST_PAGES;
+
+    /**
+     * Shared by every {@link ParallelOffsetGaPageReader}, created on first use.
+     */
+    private static ExecutorService PAGE_FETCH_POOL;
+
     /**
      * Main demo. This first initializes an Analytics service object. It then queries for the top 25
      * organic search keywords and traffic sources by visits. Finally each important part of the
@@ -105,6 +319,7 @@ public class CoreReportingApiReferenceSample {
      */
     public static void main(String[] args) {
 
+        MongoClient mongo = null;
         try {
             if (args.length == 2) {
                 // Start and end date are supplied
@@ -113,44 +328,107 @@ public class CoreReportingApiReferenceSample {
             }
             System.out.println("Retrieving for dates " + startDate + " " + endDate);
 
-            HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+            HTTP_TRANSPORT = AnalyticsHttpTransports.newTransport();
             DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
-            Analytics analytics = initializeAnalytics();
-
-
-            MongoClient mongo = new MongoClient("localhost", 27017);
-            DB regus_analytics_db = mongo.getDB("regus_analytics");
+            final Analytics analytics = initializeAnalytics();
+            if (System.getProperty("regus.cache.dir") != null) {
+                RESPONSE_CACHE = new GaResponseCache(new java.io.File(System.getProperty("regus.cache.dir")),
+                        Long.getLong("regus.cache.maxMegabytes", 1024) * 1024 * 1024,
+                        Long.getLong("regus.cache.maxAgeHours", 7 * 24) * 60 * 60 * 1000,
+                        Boolean.getBoolean("regus.cache.includeToday"), GOVERNOR);
+            }
 
-            DBCollection regus_visited_companies = regus_analytics_db.getCollection("ga");
-            DBCollection regus_visit_attributes = regus_analytics_db.getCollection("visit_attrs");
-            DBCollection centerMapping = regus_analytics_db.getCollection("center_mapping");
 
-            GaData gaData;
+            mongo = new MongoClient(MONGO_HOST, MONGO_PORT);
+            DB regus_analytics_db = mongo.getDB(MONGO_DB);
 
-            for (Date d = startDate; !DateUtils.isSameDay(d, DateUtils.addDays(endDate, 1)); d = DateUtils.addDays(d, 1)) {
-                int startIndex = 0;
-                do {
-                    System.out.println("Executing data query for visited companies for date: " + d);
-                    gaData = executeDataQueryForVisitedCompanies(analytics, TABLE_ID, startIndex, d);
-                    insertVisitedCompaniesData(gaData, regus_visited_companies, d);
-                    startIndex = gaData.getQuery().getStartIndex() + gaData.getQuery().getMaxResults();
-                } while (gaData.getNextLink() != null && !gaData.getNextLink().isEmpty());
+            final DBCollection regus_visited_companies = regus_analytics_db.getCollection(VISITED_COMPANIES_REPORT.getCollection());
+            final DBCollection regus_visit_attributes = regus_analytics_db.getCollection(VISIT_ATTRIBUTES_REPORT.getCollection());
+            final CenterMappingIndex centerMapping = new CenterMappingIndex(
+                    regus_analytics_db.getCollection("center_mapping"), CENTER_MAPPING_TTL_MINUTES);
+            final IngestCheckpointStore checkpoints = new IngestCheckpointStore(
+                    regus_analytics_db.getCollection("ingest_state"), RESUME);
+            final List<ReportDefinition> reports = REPORTS_FILE == null
+                    ? Collections.<ReportDefinition>emptyList() : ReportDefinition.load(new java.io.File(REPORTS_FILE), JSON_FACTORY);
+            final ReportEngine reportEngine = new ReportEngine(regus_analytics_db, SINKS, reports, checkpoints, METRICS,
+                    REPORTS_PARALLELISM, VISIT_ATTRIBUTES_BATCH_SIZE, VISIT_ATTRIBUTES_FLUSH_INTERVAL_MILLIS, VISIT_ATTRIBUTES_WRITE_CONCERN) {
+                @Override
+                GaPageReader openPages(final ReportDefinition report, final Date d, int startIndex) {
+                    return openPageReader(new GaPageSource() {
+                        public GaData fetch(int startIndex) throws IOException {
+                            System.out.println("Executing data query for report " + report.getName() + " for date: " + d);
+                            return executeDataQuery(analytics, report, startIndex, d, null, null);
+                        }
+                    }, startIndex);
+                }
+            };
 
+            if (BATCH_FIRST_PAGES && RESPONSE_CACHE != null) {
+                System.out.println("Not batching first pages, they are read from the response cache");
+            } else if (BATCH_FIRST_PAGES) {
+                FIRST_PAGES = new BatchedFirstPages(analytics, GOVERNOR);
+            }
 
-                startIndex = 0;
-                do {
-                    System.out.println("Executing data query for visit attributes for date: " + d);
-                    gaData = executeDataQueryForVisitAttributes(analytics, TABLE_ID, startIndex, d);
-                    insertVisitAttributesData(gaData, regus_visit_attributes, d, centerMapping);
+            // read once for the run, the days' visited companies are resolved one after another in
+            // ascending order whichever way the range is ingested
+            final FirstVisitIndex firstVisits = new FirstVisitIndex(regus_visited_companies, FIRST_VISITS_MAX_IN_MEMORY,
+                    FIRST_VISITS_SPILL_DIR);
+            try {
+                if (MAX_DAYS_PER_QUERY > 1) {
+                    ingestMultiDay(analytics, regus_visited_companies, regus_visit_attributes, firstVisits, centerMapping,
+                            checkpoints, DateRangeBackfill.days(startDate, endDate));
+                    for (Date d : DateRangeBackfill.days(startDate, endDate)) {
+                        reportEngine.ingest(d, null);
+                    }
+                } else {
+                    new DateRangeBackfill(BACKFILL_PARALLELISM).run(startDate, endDate, new DateRangeBackfill.DayIngestion() {
+                        public void ingestInDayOrder(Date d) throws Exception {
+                            prefetchFirstPages(analytics, d, checkpoints, reports);
+                            try {
+                                ingestVisitedCompanies(analytics, regus_visited_companies, firstVisits, d, checkpoints);
+                            } finally {
+                                releaseFirstPages(d);
+                            }
+                        }
 
-                    startIndex = gaData.getQuery().getStartIndex() + gaData.getQuery().getMaxResults();
-                } while (gaData.getNextLink() != null && !gaData.getNextLink().isEmpty());
+                        public void ingestInAnyOrder(final Date d) throws Exception {
+                            prefetchFirstPages(analytics, d, checkpoints, reports);
+                            try {
+                                reportEngine.ingest(d, new Callable<Void>() {
+                                    public Void call() throws Exception {
+                                        ingestVisitAttributes(analytics, regus_visit_attributes, d, centerMapping, checkpoints);
+                                        return null;
+                                    }
+                                });
+                            } finally {
+                                releaseFirstPages(d);
+                            }
+                        }
+                    });
+                }
+            } finally {
+                firstVisits.close();
+            }
+            reportEngine.close();
+            if (RESPONSE_CACHE != null) {
+                System.out.println("Response cache hits: " + RESPONSE_CACHE.getHits() + ", misses: " + RESPONSE_CACHE.getMisses());
+            }
+            GOVERNOR.printSummary();
+            AnalyticsHttpTransports.printMeasurements();
+            METRICS.printSummary();
+            if (METRICS_FILE.length() > 0) {
+                METRICS.writeSummary(new java.io.File(METRICS_FILE));
             }
         } catch (GoogleJsonResponseException e) {
             System.err.println("There was a service error: " + e.getDetails().getCode() + " : "
                     + e.getDetails().getMessage());
         } catch (Throwable t) {
             t.printStackTrace();
+        } finally {
+            // its connection threads would keep the JVM running
+            if (mongo != null) {
+                mongo.close();
+            }
         }
     }
 
@@ -185,6 +463,10 @@ public class CoreReportingApiReferenceSample {
      * @throws Exception if an issue occurs with OAuth2Native authorize.
      */
     private static Analytics initializeAnalytics() throws Exception {
+        if (API_ROOT_URL != null) {
+            return new Analytics.Builder(HTTP_TRANSPORT, JSON_FACTORY, null).setRootUrl(API_ROOT_URL)
+                    .setApplicationName(APPLICATION_NAME).build();
+        }
         // Authorization.
         Credential credential = authorize();
 
@@ -195,40 +477,523 @@ public class CoreReportingApiReferenceSample {
                 APPLICATION_NAME).build();
     }
 
-    private static GaData executeDataQueryForVisitedCompanies(Analytics analytics, String tableId, int startIndex, Date d) throws IOException {
-        Analytics.Data.Ga.Get get = analytics.data().ga().get(tableId, // Table Id.
-                new SimpleDateFormat("yyyy-MM-dd").format(d), // Start date.
-                new SimpleDateFormat("yyyy-MM-dd").format(d), // End date.
-                "ga:visits") // Metrics.
-                .setDimensions("ga:dimension20")
-//        .setSort("-ga:visits")
-                .setFilters("ga:dimension11!=(Non-Company Visitor)")
-                .setMaxResults(5000);
+    /**
+     * Pages through the visited companies report for one day and writes every page.
+     *
+     * @param firstVisits the first visit dates of the run, or {@code null} to look them up in
+     *                    {@code collection}.
+     */
+    private static void ingestVisitedCompanies(final Analytics analytics, DBCollection collection,
+                                               FirstVisitIndex firstVisits, final Date d,
+                                               IngestCheckpointStore checkpoints) throws Exception {
+        if (checkpoints.skipDay(VISITED_COMPANIES_QUERY, d)) {
+            System.out.println("Visited companies already ingested for date: " + d);
+            return;
+        }
+        int startIndex = checkpoints.resumeStartIndex(VISITED_COMPANIES_QUERY, d, VISITED_COMPANIES_REPORT.filters(null));
+        GaPageReader pages = openPageReader(new GaPageSource() {
+            public GaData fetch(int startIndex) throws IOException {
+                System.out.println("Executing data query for visited companies for date: " + d);
+                return executeDataQuery(analytics, VISITED_COMPANIES_REPORT, startIndex, d, null, null);
+            }
+        }, startIndex);
+        IngestMetrics.Stages stages = METRICS.stages(VISITED_COMPANIES_QUERY, d);
+        DocumentSink sink = openVisitedCompaniesSink(SINKS.withMongo(), collection, stages);
+        try {
+            GaData gaData;
+            while ((gaData = pages.next()) != null) {
+                insertVisitedCompaniesData(gaData, collection, firstVisits, sink, d, stages);
+                // a page after a failed one must not move the watermark past it either
+                if (sink.getFailedCount() == 0) {
+                    checkpoints.pageWritten(VISITED_COMPANIES_QUERY, d, VISITED_COMPANIES_REPORT.filters(null), gaData);
+                }
+            }
+        } finally {
+            pages.close();
+            sink.close();
+        }
+        if (sink.getFailedCount() == 0) {
+            checkpoints.dayComplete(VISITED_COMPANIES_QUERY, d);
+        } else {
+            System.out.println(sink.getFailedCount() + " visited companies failed to be written for date: " + d
+                    + ", the day is read again by the next run");
+        }
+    }
 
-        if (startIndex > 0) {
-            get.setStartIndex(startIndex);
+    /**
+     * Pages through the visit attributes report for one day and writes every page.
+     */
+    private static void ingestVisitAttributes(final Analytics analytics, DBCollection collection, final Date d,
+                                              CenterMappingIndex centerMapping, final IngestCheckpointStore checkpoints) throws Exception {
+        if (checkpoints.skipDay(VISIT_ATTRIBUTES_QUERY, d)) {
+            System.out.println("Visit attributes already ingested for date: " + d);
+            return;
         }
+        String ingestRun = REPLACE_VISIT_ATTRIBUTES_DAY ? checkpoints.dayRun(VISIT_ATTRIBUTES_QUERY, d) : null;
+        IngestMetrics.Stages stages = METRICS.stages(VISIT_ATTRIBUTES_QUERY, d);
+        DocumentSink writer = openVisitAttributesSink(collection, stages.write);
+        final VisitAttributesDailyRollup rollup = new VisitAttributesDailyRollup(d);
+        final VisitAttributesRows rows = new VisitAttributesRows(writer, rollup, PAGE_PATHS, centerMapping, ingestRun, stages);
+        // when streaming, rows go straight from the response into the writer and pages come without them
+        final GaRowSink streamTo = STREAM_VISIT_ATTRIBUTES ? rows : null;
 
-        return get.execute();
+        SampledQuerySplitter splitter = null;
+        GaPageReader pages;
+        if (SPLIT_SAMPLED_VISIT_ATTRIBUTES) {
+            splitter = new SampledQuerySplitter() {
+                @Override
+                GaPageReader openSlice(String hourFilter) {
+                    return openVisitAttributesReader(analytics, d, hourFilter, checkpoints, streamTo, rollup);
+                }
+            };
+            pages = splitter;
+        } else {
+            pages = openVisitAttributesReader(analytics, d, null, checkpoints, streamTo, rollup);
+        }
+        try {
+            GaData gaData;
+            while ((gaData = pages.next()) != null) {
+                if (streamTo == null) {
+                    insertVisitAttributesData(gaData, rows);
+                }
+                // the watermark may only move past rows that are really written
+                writer.flush();
+                if (writer.getFailedCount() == 0) {
+                    checkpoints.pageWritten(VISIT_ATTRIBUTES_QUERY, d,
+                            VISIT_ATTRIBUTES_REPORT.filters(splitter != null ? splitter.getHourFilter() : null), gaData);
+                }
+            }
+        } finally {
+            pages.close();
+            writer.close();
+        }
+        if (splitter != null && splitter.getSampledHours() > 0) {
+            System.out.println("Skipped the visit attributes of " + splitter.getSampledHours()
+                    + " hours that are sampled even on their own for date: " + d);
+        }
+        if (ingestRun != null && SINKS.writesMongo() && writer.getFailedCount() == 0) {
+            removeEarlierVisitAttributes(collection, d, ingestRun);
+        }
+        rows.endDay(splitter);
+        writeDailyRollup(collection, rollup);
+        if (writer.getFailedCount() == 0) {
+            checkpoints.dayComplete(VISIT_ATTRIBUTES_QUERY, d);
+        }
+        System.out.println("Wrote " + writer.getWrittenCount() + " visit attributes for date: " + d
+                + (writer.getFailedCount() > 0 ? " (" + writer.getFailedCount() + " failed, the day is read again by the next run)" : ""));
+    }
 
+    /**
+     * Removes the visit attributes of day {@code d} that do not carry this run's marker. Every row of
+     * the day that this run wrote does, so the rest are left over from earlier runs. Call only when
+     * none of the day's rows failed to be written.
+     */
+    private static void removeEarlierVisitAttributes(DBCollection collection, Date d, String ingestRun) {
+        WriteResult removed = collection.remove(new BasicDBObject("date", new SimpleDateFormat("yyyy/MM/dd").format(d))
+                .append("ingestRun", new BasicDBObject("$ne", ingestRun)), VISIT_ATTRIBUTES_WRITE_CONCERN);
+        System.out.println("Removed " + removed.getN() + " visit attributes of earlier runs for date: " + d);
     }
 
-    private static GaData executeDataQueryForVisitAttributes(Analytics analytics, String tableId, int startIndex, Date d) throws IOException {
-        Analytics.Data.Ga.Get get = analytics.data().ga().get(tableId, // Table Id.
-                new SimpleDateFormat("yyyy-MM-dd").format(d), // Start date.
-                new SimpleDateFormat("yyyy-MM-dd").format(d), // End date.
-                VISIT_ATTRIBUTES_METRICS) // Metrics.
-                .setDimensions(VISIT_ATTRIBUTES_DIMENSIONS)
-//        .setSort("-ga:visits")
-                .setFilters("ga:dimension11!=(Non-Company Visitor)")
-                .setMaxResults(5000);
+    /**
+     * Replaces the documents of the rollup's day in {@code visit_attrs_daily}, next to the visit
+     * attributes {@code collection}, unless the rollup misses rows of the day. The groups of an
+     * earlier run are only removed once every group of this one is written.
+     */
+    private static void writeDailyRollup(DBCollection collection, VisitAttributesDailyRollup rollup) {
+        Date d = rollup.getDay();
+        if (rollup.isPartial()) {
+            System.out.println("Not writing the daily rollup of visit attributes for date: " + d
+                    + ", it misses rows that an earlier run wrote or that were left out as sampled.");
+            return;
+        }
+        DBCollection daily = collection.getDB().getCollection(VISIT_ATTRIBUTES_DAILY_COLLECTION);
+        String ingestRun = new ObjectId().toString();
+        // the rollup covers the whole day, so its files replace the day's even when resuming
+        DocumentSink sink = SINKS.replacingPartitions().open(daily, "_id", VISIT_ATTRIBUTES_BATCH_SIZE, 0, VISIT_ATTRIBUTES_WRITE_CONCERN,
+                METRICS.stages(VISIT_ATTRIBUTES_DAILY_QUERY, d).write);
+        int groups;
+        try {
+            groups = rollup.writeTo(sink, ingestRun);
+        } finally {
+            sink.close();
+        }
+        if (sink.getFailedCount() > 0) {
+            System.out.println(sink.getFailedCount() + " daily rollups of visit attributes failed to be written for date: "
+                    + d + ", keeping those of earlier runs");
+        } else if (SINKS.writesMongo()) {
+            // groups of an earlier run that this one did not see
+            daily.remove(new BasicDBObject("date", new SimpleDateFormat("yyyy/MM/dd").format(d))
+                    .append("ingestRun", new BasicDBObject("$ne", ingestRun)), VISIT_ATTRIBUTES_WRITE_CONCERN);
+        }
+        System.out.println("Wrote " + groups + " daily rollups of visit attributes for date: " + d);
+    }
 
-        if (startIndex > 0) {
-            get.setStartIndex(startIndex);
+    /**
+     * Fetches the first pages of every report of day {@code d} that will be read from its first
+     * page, with batch requests. Does nothing unless {@code regus.fetch.batchFirstPages} is on, or
+     * when the day's pages were fetched already. Both parts of the day call this, and
+     * {@link #releaseFirstPages} when done.
+     */
+    private static void prefetchFirstPages(Analytics analytics, Date d, IngestCheckpointStore checkpoints,
+                                           List<ReportDefinition> reports) throws IOException {
+        if (FIRST_PAGES == null) {
+            return;
         }
+        List<ReportDefinition> firstPageReports = new ArrayList<ReportDefinition>();
+        firstPageReports.add(VISITED_COMPANIES_REPORT);
+        if (!STREAM_VISIT_ATTRIBUTES) {
+            firstPageReports.add(VISIT_ATTRIBUTES_REPORT);
+        }
+        firstPageReports.addAll(reports);
+        List<Analytics.Data.Ga.Get> gets = new ArrayList<Analytics.Data.Ga.Get>();
+        for (ReportDefinition report : firstPageReports) {
+            if (checkpoints.resumeStartIndex(report.getName(), d, report.filters(null)) == 0) {
+                gets.add(report.newQuery(analytics, TABLE_ID, d, 0, null));
+            }
+        }
+        FIRST_PAGES.prefetch(new SimpleDateFormat("yyyy-MM-dd").format(d), 2, gets);
+    }
+
+    /**
+     * Drops the first pages of day {@code d} not read, once both parts of the day are done.
+     */
+    private static void releaseFirstPages(Date d) {
+        if (FIRST_PAGES != null) {
+            FIRST_PAGES.release(new SimpleDateFormat("yyyy-MM-dd").format(d));
+        }
+    }
+
+    /**
+     * Ingests the visited companies, then the visit attributes, of {@code days} with multi-day queries,
+     * see {@link MultiDayQueryPlanner}. The visited companies are resolved one day after another in
+     * ascending order, as {@code firstVisitDate} requires, against the run's {@code firstVisits},
+     * and each company is upserted once, see {@link VisitedCompaniesBuffer}, while the columnar
+     * files, if any, get every day's companies under their day as the date-range backfill writes
+     * them. A day is only marked complete once its companies are written.
+     */
+    private static void ingestMultiDay(final Analytics analytics, final DBCollection companies, final DBCollection attributes,
+                                       final FirstVisitIndex firstVisits, final CenterMappingIndex centerMapping,
+                                       final IngestCheckpointStore checkpoints, List<Date> days) throws Exception {
+        if (days.isEmpty()) {
+            return;
+        }
+        Date first = days.get(0);
+        Date last = days.get(days.size() - 1);
+        // one sink each for all days, so their writes are timed for the whole range
+        IngestMetrics.Stages companiesStages = METRICS.stages(VISITED_COMPANIES_QUERY, first, last);
+        final DocumentSink companiesSink = openVisitedCompaniesSink(SINKS.withoutFiles(), companies, companiesStages);
+        final DocumentSink companiesFiles = SINKS.writesFiles()
+                ? openVisitedCompaniesSink(SINKS.withoutMongo(), companies, companiesStages) : null;
+        final VisitedCompaniesBuffer buffered = new VisitedCompaniesBuffer(companiesSink, companiesFiles,
+                VISITED_COMPANIES_MAX_BUFFERED);
+        try {
+            new MultiDayQueryPlanner(MAX_DAYS_PER_QUERY, MAX_ROWS_PER_QUERY) {
+                @Override
+                GaPageReader openSpan(Date from, Date to) {
+                    return openPageReader(multiDaySource(analytics, VISITED_COMPANIES_REPORT, from, to), 0);
+                }
+
+                @Override
+                void ingestDay(Date d) throws Exception {
+                    // the day's pages are written as they come, after the days before it
+                    flushBuffered(buffered, checkpoints);
+                    ingestVisitedCompanies(analytics, companies, firstVisits, d, checkpoints);
+                }
+
+                @Override
+                void writeDayPage(Date d, GaData dayPage) throws Exception {
+                    buffered.add(d, parseVisitedCompanies(dayPage, companies, firstVisits, d,
+                            METRICS.stages(VISITED_COMPANIES_QUERY, d)));
+                    if (buffered.isFull()) {
+                        flushBuffered(buffered, checkpoints);
+                    }
+                }
+
+                @Override
+                void dayWritten(Date d) {
+                    buffered.dayAdded(d);
+                }
+            }.run(pendingDays(VISITED_COMPANIES_QUERY, days, checkpoints));
+            flushBuffered(buffered, checkpoints);
+        } finally {
+            try {
+                companiesSink.close();
+            } finally {
+                if (companiesFiles != null) {
+                    companiesFiles.close();
+                }
+            }
+        }
+
+        final DocumentSink writer = openVisitAttributesSink(attributes,
+                METRICS.stages(VISIT_ATTRIBUTES_QUERY, first, last).write);
+        try {
+            new MultiDayQueryPlanner(MAX_DAYS_PER_QUERY, MAX_ROWS_PER_QUERY) {
+                private Date rowsDay;
+                private VisitAttributesRows rows;
+                private VisitAttributesDailyRollup rollup;
+                private String ingestRun;
+                // failed writes of the days before, each day's documents are flushed when it is done
+                private long failedBefore;
 
-        return get.execute();
+                @Override
+                GaPageReader openSpan(Date from, Date to) {
+                    return openPageReader(multiDaySource(analytics, VISIT_ATTRIBUTES_REPORT, from, to), 0);
+                }
+
+                @Override
+                void ingestDay(Date d) throws Exception {
+                    ingestVisitAttributes(analytics, attributes, d, centerMapping, checkpoints);
+                }
+
+                @Override
+                void writeDayPage(Date d, GaData dayPage) {
+                    startDay(d);
+                    insertVisitAttributesData(dayPage, rows);
+                }
+
+                @Override
+                void dayWritten(Date d) {
+                    startDay(d);
+                    writer.flush();
+                    if (ingestRun != null && SINKS.writesMongo() && writer.getFailedCount() == failedBefore) {
+                        removeEarlierVisitAttributes(attributes, d, ingestRun);
+                    }
+                    rows.endDay(null);
+                    writeDailyRollup(attributes, rollup);
+                    if (writer.getFailedCount() == failedBefore) {
+                        checkpoints.dayComplete(VISIT_ATTRIBUTES_QUERY, d);
+                    } else {
+                        System.out.println((writer.getFailedCount() - failedBefore) + " visit attributes failed to be written for date: "
+                                + d + ", the day is read again by the next run");
+                        failedBefore = writer.getFailedCount();
+                    }
+                }
 
+                private void startDay(Date d) {
+                    if (d != rowsDay) {
+                        rowsDay = d;
+                        ingestRun = REPLACE_VISIT_ATTRIBUTES_DAY ? checkpoints.dayRun(VISIT_ATTRIBUTES_QUERY, d) : null;
+                        rollup = new VisitAttributesDailyRollup(d);
+                        rows = new VisitAttributesRows(writer, rollup, PAGE_PATHS, centerMapping, ingestRun,
+                                METRICS.stages(VISIT_ATTRIBUTES_QUERY, d));
+                    }
+                }
+            }.run(pendingDays(VISIT_ATTRIBUTES_QUERY, days, checkpoints));
+        } finally {
+            writer.close();
+        }
+        System.out.println("Wrote " + writer.getWrittenCount() + " visit attributes with multi-day queries"
+                + (writer.getFailedCount() > 0 ? " (" + writer.getFailedCount() + " failed)" : ""));
+    }
+
+    /**
+     * Writes the visited companies {@code buffered} holds and marks the days complete all of whose
+     * companies are written now.
+     */
+    private static void flushBuffered(VisitedCompaniesBuffer buffered, IngestCheckpointStore checkpoints) {
+        for (Date d : buffered.flush()) {
+            checkpoints.dayComplete(VISITED_COMPANIES_QUERY, d);
+        }
+    }
+
+    /**
+     * Opens the sink of the visited companies in {@code sinks}, which replaces a company's document
+     * by its {@code demandbase_sid}.
+     */
+    private static DocumentSink openVisitedCompaniesSink(DocumentSinks sinks, DBCollection collection,
+                                                         IngestMetrics.Stages stages) {
+        return sinks.open(collection, "demandbase_sid", VISITED_COMPANIES_BATCH_SIZE, 0,
+                collection.getWriteConcern(), stages.write);
+    }
+
+    /**
+     * Opens the sink of the visit attributes, which replaces a document by its {@code _id}.
+     */
+    private static DocumentSink openVisitAttributesSink(DBCollection collection, IngestMetrics.StageTimer writes) {
+        return SINKS.open(collection, "_id", VISIT_ATTRIBUTES_BATCH_SIZE, VISIT_ATTRIBUTES_FLUSH_INTERVAL_MILLIS,
+                VISIT_ATTRIBUTES_WRITE_CONCERN, writes);
+    }
+
+    /**
+     * Returns the days the query still has to be ingested for, see {@link IngestCheckpointStore#skipDay}.
+     */
+    private static List<Date> pendingDays(String query, List<Date> days, IngestCheckpointStore checkpoints) {
+        List<Date> pending = new ArrayList<Date>();
+        for (Date d : days) {
+            if (checkpoints.skipDay(query, d)) {
+                System.out.println(query + " already ingested for date: " + d);
+            } else {
+                pending.add(d);
+            }
+        }
+        return pending;
+    }
+
+    private static GaPageSource multiDaySource(final Analytics analytics, final ReportDefinition report,
+                                               final Date from, final Date to) {
+        return new GaPageSource() {
+            public GaData fetch(int startIndex) throws IOException {
+                System.out.println("Executing data query for " + report.getName() + " for dates: " + from + " to " + to);
+                return execute(report.newMultiDayQuery(analytics, TABLE_ID, from, to, startIndex),
+                        METRICS.stages(report.getName(), from, to));
+            }
+        };
+    }
+
+    /**
+     * Opens a reader over the visit attributes of one day, starting where an earlier run stopped.
+     *
+     * @param extraFilter a filter ANDed with the default one, or {@code null} for none.
+     * @param streamTo    the sink to stream each page's rows to as they are decoded, or {@code null} to
+     *                    read whole pages.
+     * @param rollup      the day's rollup, which misses rows unless the query is read from its start.
+     */
+    private static GaPageReader openVisitAttributesReader(final Analytics analytics, final Date d, final String extraFilter,
+                                                          IngestCheckpointStore checkpoints, final GaRowSink streamTo,
+                                                          VisitAttributesDailyRollup rollup) {
+        int startIndex = checkpoints.resumeStartIndex(VISIT_ATTRIBUTES_QUERY, d, VISIT_ATTRIBUTES_REPORT.filters(extraFilter));
+        if (startIndex != 0) {
+            rollup.markPartial();
+        }
+        GaPageSource source = new GaPageSource() {
+            public GaData fetch(int startIndex) throws IOException {
+                System.out.println("Executing data query for visit attributes for date: " + d
+                        + (extraFilter == null ? "" : " " + extraFilter));
+                return executeDataQuery(analytics, VISIT_ATTRIBUTES_REPORT, startIndex, d, extraFilter, streamTo);
+            }
+        };
+        if (streamTo != null) {
+            // the rows are written while the page is fetched, which has to happen on this thread, in order
+            return startIndex == IngestCheckpointStore.COMPLETE ? GaPageReader.empty() : new SerialGaPageReader(source, startIndex);
+        }
+        return openPageReader(source, startIndex);
+    }
+
+    /**
+     * @param startIndex the start index of the first page to read, 0 for the first page of the query
+     *                   or {@link IngestCheckpointStore#COMPLETE} for none.
+     */
+    private static GaPageReader openPageReader(GaPageSource source, int startIndex) {
+        if (startIndex == IngestCheckpointStore.COMPLETE) {
+            return GaPageReader.empty();
+        }
+        if (PARALLEL_PAGES > 0) {
+            return new ParallelOffsetGaPageReader(source, startIndex, pageFetchPool(), PARALLEL_PAGES);
+        }
+        if (PREFETCH_PAGES > 0) {
+            return new PipelinedGaPageReader(source, startIndex, PREFETCH_PAGES);
+        }
+        return new SerialGaPageReader(source, startIndex);
+    }
+
+    private static synchronized ExecutorService pageFetchPool() {
+        if (PAGE_FETCH_POOL == null) {
+            PAGE_FETCH_POOL = Executors.newFixedThreadPool(MAX_CONCURRENT_PAGE_REQUESTS, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "page-request-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return PAGE_FETCH_POOL;
+    }
+
+    /**
+     * Executes the query for one page of {@code report} on day {@code d}.
+     *
+     * @param extraFilter a filter ANDed with the report's own, or {@code null} for none.
+     * @param streamTo    the sink to stream the rows to, or {@code null} to return them in the page.
+     */
+    private static GaData executeDataQuery(Analytics analytics, ReportDefinition report, int startIndex, Date d,
+                                           String extraFilter, GaRowSink streamTo) throws IOException {
+        Analytics.Data.Ga.Get get = report.newQuery(analytics, TABLE_ID, d, startIndex, extraFilter);
+        IngestMetrics.Stages stages = METRICS.stages(report.getName(), d);
+        if (streamTo != null) {
+            return executeStreaming(get, streamTo, stages);
+        }
+        return execute(get, stages);
+    }
+
+    /**
+     * Executes a Core Reporting query, unless its response was fetched in a batch already, through
+     * the response cache if there is one, within the quota. The request and the parsing of its
+     * response are timed as the fetch and decode stages.
+     */
+    private static GaData execute(final Analytics.Data.Ga.Get get, final IngestMetrics.Stages stages) throws IOException {
+        if (FIRST_PAGES != null) {
+            GaData gaData = FIRST_PAGES.take(get);
+            if (gaData != null) {
+                return gaData;
+            }
+        }
+        if (RESPONSE_CACHE != null) {
+            long start = System.nanoTime();
+            InputStream in = RESPONSE_CACHE.open(get);
+            stages.fetch.record(start, 1);
+            try {
+                start = System.nanoTime();
+                GaData gaData = JSON_FACTORY.fromInputStream(in, GaData.class);
+                stages.decode.record(start, 1);
+                return gaData;
+            } finally {
+                in.close();
+            }
+        }
+        return GOVERNOR.execute(new AnalyticsRequestGovernor.Call<GaData>() {
+            public GaData call() throws IOException {
+                long start = System.nanoTime();
+                HttpResponse response = get.executeUnparsed();
+                stages.fetch.record(start, 1);
+                start = System.nanoTime();
+                GaData gaData = response.parseAs(GaData.class);
+                stages.decode.record(start, 1);
+                return gaData;
+            }
+        });
+    }
+
+    /**
+     * Executes a Core Reporting query and streams the rows of the response into {@code sink}, see
+     * {@link StreamingGaDataDecoder}.
+     *
+     * @return the page without its rows.
+     */
+    private static GaData executeStreaming(final Analytics.Data.Ga.Get get, final GaRowSink sink,
+                                           final IngestMetrics.Stages stages) throws IOException {
+        if (RESPONSE_CACHE != null) {
+            long start = System.nanoTime();
+            InputStream in = RESPONSE_CACHE.open(get);
+            stages.fetch.record(start, 1);
+            try {
+                return decodeStreaming(in, sink, stages);
+            } finally {
+                in.close();
+            }
+        }
+        // the slot is held while the rows are read, the connection is busy until then
+        return GOVERNOR.execute(new AnalyticsRequestGovernor.Call<GaData>() {
+            public GaData call() throws IOException {
+                long start = System.nanoTime();
+                HttpResponse response = get.executeUnparsed();
+                stages.fetch.record(start, 1);
+                try {
+                    return decodeStreaming(response.getContent(), sink, stages);
+                } finally {
+                    response.disconnect();
+                }
+            }
+        });
+    }
+
+    private static GaData decodeStreaming(InputStream in, GaRowSink sink, IngestMetrics.Stages stages) throws IOException {
+        long start = System.nanoTime();
+        GaData gaData = STREAMING_DECODER.decode(in, sink);
+        stages.decode.record(start, 1);
+        return gaData;
     }
 
     /**
@@ -326,109 +1091,104 @@ public class CoreReportingApiReferenceSample {
     }
 
     /**
-     * Prints all the rows of data returned by the API.
-     *  @param gaData     the data returned from the API.
-     * @param collection
-     * @param d
+     * Writes the visited companies of one page, replacing the document of each by the latest data,
+     * see {@link #parseVisitedCompanies}. The page is flushed, so the next one finds its companies
+     * stored.
+     *
+     * @param sink the sink to write to, which writes to {@code collection} too.
      */
-    private static void insertVisitedCompaniesData(GaData gaData, DBCollection collection, Date d) throws JSONException {
-        if (gaData.getTotalResults() > 0) {
-            System.out.println("Data Table: " + collection);
+    private static void insertVisitedCompaniesData(GaData gaData, DBCollection collection, FirstVisitIndex firstVisits,
+                                                   DocumentSink sink, Date d, IngestMetrics.Stages stages) throws JSONException {
+        Map<Object, DBObject> companies = parseVisitedCompanies(gaData, collection, firstVisits, d, stages);
+        if (!companies.isEmpty()) {
+            System.out.println("Data Table: " + sink);
+            for (DBObject company : companies.values()) {
+                sink.add(d, company);
+            }
+            sink.flush();
+        }
+    }
 
+    /**
+     * Returns the visited companies of one page by {@code demandbase_sid}, with the
+     * {@code firstVisitDate} of a company seen before carried over from the stored document.
+     *
+     * @param gaData      the data returned from the API.
+     * @param collection  the collection the first visit dates are looked up in.
+     * @param firstVisits the first visit dates of the run, or {@code null} to look them up in
+     *                    {@code collection}.
+     * @param d           the date the data is for.
+     * @param stages      where the parsing and the lookup of the page are timed.
+     */
+    private static Map<Object, DBObject> parseVisitedCompanies(GaData gaData, DBCollection collection,
+                                                               FirstVisitIndex firstVisits, Date d,
+                                                               IngestMetrics.Stages stages) throws JSONException {
+        // a company listed twice on the page ends up with its last row like before
+        Map<Object, DBObject> companies = new LinkedHashMap<Object, DBObject>();
+        if (gaData.getTotalResults() > 0 && gaData.getRows() != null) {
+            long start = System.nanoTime();
+            DemandbaseParser parser = new DemandbaseParser();
             for (List<String> rowValues : gaData.getRows()) {
-                Map jsonMap = (Map) JSON.parse(rowValues.get(0));
-                if (jsonMap.get("demandbase_sid") == null) {
+                DBObject dbObject = parser.parse(rowValues.get(0));
+                if (dbObject == null || dbObject.get("demandbase_sid") == null) {
                     continue;
                 }
-                DBObject dbObject = new BasicDBObject(jsonMap);
-                dbObject.removeField("ip");
-                HashMap<Object, Object> map = new HashMap<Object, Object>();
-                map.put("demandbase_sid", dbObject.get("demandbase_sid"));
-                BasicDBObject objectToRemove = new BasicDBObject(map);
-                DBObject andRemove = collection.findAndRemove(objectToRemove);
-                if (andRemove == null) {
-                    dbObject.put("firstVisitDate", new SimpleDateFormat("yyyy/MM/dd").format(d));
-                } else {
-                    dbObject.put("firstVisitDate", andRemove.get("firstVisitDate"));
+                companies.put(dbObject.get("demandbase_sid"), dbObject);
+            }
+            stages.transform.record(start, gaData.getRows().size());
+            if (companies.isEmpty()) {
+                return companies;
+            }
+
+            start = System.nanoTime();
+            String today = new SimpleDateFormat("yyyy/MM/dd").format(d);
+            if (firstVisits != null) {
+                for (Map.Entry<Object, DBObject> company : companies.entrySet()) {
+                    company.getValue().put("firstVisitDate", firstVisits.firstVisitDate(company.getKey(), today));
+                }
+            } else {
+                Map<Object, Object> firstVisitDates = findFirstVisitDates(collection, companies.keySet());
+                for (Map.Entry<Object, DBObject> company : companies.entrySet()) {
+                    Object sid = company.getKey();
+                    company.getValue().put("firstVisitDate", firstVisitDates.containsKey(sid) ? firstVisitDates.get(sid) : today);
                 }
-                collection.insert(dbObject);
             }
+            stages.lookup.record(start, companies.size());
         } else {
             System.out.println("No data");
         }
+        return companies;
     }
 
-    private static void insertVisitAttributesData(GaData gaData, DBCollection collection, Date d, DBCollection centerMapping) throws JSONException {
-        if (gaData.getTotalResults() > 0) {
-            System.out.println("Data Table:" + collection);
-
-            String[] columns = (VISIT_ATTRIBUTES_METRICS + "," + VISIT_ATTRIBUTES_DIMENSIONS).split(",");
-            HashMap<String, Integer> columnLookUp = new HashMap<String, Integer>();
-            List<ColumnHeaders> columnHeaders = gaData.getColumnHeaders();
-            for (String column : columns) {
-                for (int i=0; i< columnHeaders.size(); i++) {
-                    if (columnHeaders.get(i).getName().equals(column)) {
-                        columnLookUp.put(column, i);
-                        break;
-                    }
-                }
+    /**
+     * Looks up the stored {@code firstVisitDate} of every company on the page in one query.
+     *
+     * @return the first visit date by {@code demandbase_sid}, for the companies seen before.
+     */
+    private static Map<Object, Object> findFirstVisitDates(DBCollection collection, Set<Object> sids) {
+        Map<Object, Object> firstVisitDates = new HashMap<Object, Object>();
+        DBCursor cursor = collection.find(
+                new BasicDBObject("demandbase_sid", new BasicDBObject("$in", sids)),
+                new BasicDBObject("demandbase_sid", 1).append("firstVisitDate", 1));
+        try {
+            while (cursor.hasNext()) {
+                DBObject stored = cursor.next();
+                firstVisitDates.put(stored.get("demandbase_sid"), stored.get("firstVisitDate"));
             }
+        } finally {
+            cursor.close();
+        }
+        return firstVisitDates;
+    }
 
-            if (!gaData.getContainsSampledData()) {
-                for (List<String> rowValues : gaData.getRows()) {
-                    String demandBaseId = rowValues.get(columnLookUp.get("ga:dimension11"));
-                    String clientId = rowValues.get(columnLookUp.get("ga:dimension2"));
-                    String pagePath = rowValues.get(columnLookUp.get("ga:pagePath"));
-                    String source = rowValues.get(columnLookUp.get("ga:source"));
-                    String medium = rowValues.get(columnLookUp.get("ga:medium"));
-//                    String visits = rowValues.get(columnLookUp.get("ga:visits"));
-//                    String users = rowValues.get(columnLookUp.get("ga:users"));
-//                    String pageViews = rowValues.get(columnLookUp.get("ga:pageviews"));
-//                    String sessionDuration = rowValues.get(columnLookUp.get("ga:sessionDuration"));
-
-
-                    HashMap<Object, Object> map = new HashMap<Object, Object>();
-                    map.put("demandbase_sid", demandBaseId);
-                    map.put("clientId", clientId);
-                    String[] split = pagePath.split("\\?"); // remove all characters after the URL parameters
-                    String[] withoutMobileUrl = split[0].split("regus.com");
-                    String strippedPagePath = withoutMobileUrl[withoutMobileUrl.length - 1];
-
-                    String product = "", centerLookUp = "", centerId = "";
-                    String[] locations = strippedPagePath.split("locations/");
-                    if (locations.length > 1) {
-                        int index = locations[1].indexOf("/");
-                        product = locations[1].substring(0, index);
-                        centerLookUp = locations[1].substring(index + 1);
-
-                        HashMap<Object, Object> centerLookUpMap = new HashMap<Object, Object>();
-                        centerLookUpMap.put("CentreURLName", centerLookUp);
-                        BasicDBObject objectToRemove = new BasicDBObject(centerLookUpMap);
-                        DBCursor cursor = centerMapping.find(objectToRemove);
-                        if (cursor.hasNext()) {
-                            centerId = cursor.next().get("CentreID").toString();
-                        }
-
-
-                    }
-                    map.put("pagePath", strippedPagePath);
-                    map.put("source", source);
-                    map.put("medium", medium);
-                    map.put("product", product);
-                    map.put("centerId", centerId);
-//                    map.put("visits", visits);
-//                    map.put("users", users);
-//                    map.put("pageViews", pageViews);
-//                    map.put("sessionDuration", sessionDuration);
-                    map.put("date", new SimpleDateFormat("yyyy/MM/dd").format(d));
-                    BasicDBObject objectToInsert = new BasicDBObject(map);
-                    collection.insert(objectToInsert);
-                }
-            } else {
-                System.out.println(" Excluding analytics data since it has sample data");
+    /**
+     * Writes the visit attributes of one page.
+     */
+    private static void insertVisitAttributesData(GaData gaData, VisitAttributesRows rows) {
+        if (rows.startPage(gaData)) {
+            for (List<String> rowValues : gaData.getRows()) {
+                rows.row(rowValues);
             }
-        } else {
-            System.out.println("No data");
         }
     }
 }
@@ -0,0 +1,166 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import org.apache.commons.lang3.time.DateUtils;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Splits a date range into per-day work units and runs them on a bounded worker pool.
+ * <p/>
+ * Each day has two parts. The order independent part (visit attributes are plain inserts) runs as
+ * soon as a worker picks the day up. The in day order part (visited companies, whose
+ * {@code firstVisitDate} depends on what earlier days wrote) waits until every earlier day has
+ * finished its own in day order part, so the collection ends up exactly as after a sequential run.
+ * <p/>
+ * With a parallelism of 1 the days run one after another on the calling thread, in the same order
+ * as before: visited companies first, then visit attributes.
+ */
+class DateRangeBackfill {
+
+    /**
+     * The work done for a single day.
+     */
+    interface DayIngestion {
+
+        /**
+         * Ingests the part of the day that must be applied in ascending date order.
+         */
+        void ingestInDayOrder(Date d) throws Exception;
+
+        /**
+         * Ingests the part of the day that can be applied in any order.
+         */
+        void ingestInAnyOrder(Date d) throws Exception;
+    }
+
+    private final int parallelism;
+
+    DateRangeBackfill(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Returns every day from {@code startDate} to {@code endDate}, both inclusive.
+     */
+    static List<Date> days(Date startDate, Date endDate) {
+        List<Date> days = new ArrayList<Date>();
+        for (Date d = startDate; !DateUtils.isSameDay(d, DateUtils.addDays(endDate, 1)); d = DateUtils.addDays(d, 1)) {
+            days.add(d);
+        }
+        return days;
+    }
+
+    void run(Date startDate, Date endDate, DayIngestion ingestion) throws Exception {
+        List<Date> days = days(startDate, endDate);
+        if (parallelism == 1 || days.size() <= 1) {
+            for (Date d : days) {
+                ingestion.ingestInDayOrder(d);
+                ingestion.ingestInAnyOrder(d);
+            }
+            return;
+        }
+
+        System.out.println("Backfilling " + days.size() + " days with " + parallelism + " workers");
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(parallelism, days.size()), new WorkerThreadFactory());
+        DaySequencer sequencer = new DaySequencer();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        try {
+            // Days are queued in ascending order, so a day waiting for its turn only ever waits on
+            // days that are already running or finished.
+            for (int i = 0; i < days.size(); i++) {
+                futures.add(pool.submit(new DayUnit(i, days.get(i), ingestion, sequencer)));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            pool.shutdownNow();
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static class DayUnit implements Callable<Void> {
+        private final int index;
+        private final Date day;
+        private final DayIngestion ingestion;
+        private final DaySequencer sequencer;
+
+        DayUnit(int index, Date day, DayIngestion ingestion, DaySequencer sequencer) {
+            this.index = index;
+            this.day = day;
+            this.ingestion = ingestion;
+            this.sequencer = sequencer;
+        }
+
+        public Void call() throws Exception {
+            try {
+                ingestion.ingestInAnyOrder(day);
+                sequencer.awaitTurn(index);
+                ingestion.ingestInDayOrder(day);
+                sequencer.complete(index);
+            } catch (Exception e) {
+                sequencer.fail(index, e);
+                System.err.println("Backfill failed for date: " + day + ", later days will not be completed");
+                throw e;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Lets the in day order parts run one at a time, in ascending day index. Once a day fails, no
+     * later day gets its turn, which is where a sequential run would have stopped too.
+     */
+    private static class DaySequencer {
+        private int next = 0;
+        private int failedIndex = Integer.MAX_VALUE;
+        private Exception failure;
+
+        synchronized void awaitTurn(int index) throws Exception {
+            while (next < index && failedIndex > index) {
+                wait();
+            }
+            if (failedIndex < index) {
+                throw new IllegalStateException("An earlier day failed", failure);
+            }
+        }
+
+        synchronized void complete(int index) {
+            next = index + 1;
+            notifyAll();
+        }
+
+        synchronized void fail(int index, Exception e) {
+            if (index < failedIndex) {
+                failedIndex = index;
+                failure = e;
+            }
+            notifyAll();
+        }
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "backfill-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
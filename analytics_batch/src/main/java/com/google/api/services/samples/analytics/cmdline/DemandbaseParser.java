@@ -0,0 +1,308 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+
+/**
+ * Parses the Demandbase JSON blob of {@code ga:dimension20} straight into the document stored in the
+ * {@code ga} collection.
+ * <p/>
+ * This replaces {@code org.mortbay.util.ajax.JSON.parse} followed by copying the map into a
+ * {@link BasicDBObject} and removing {@code ip}. The top level {@code ip} field is skipped while
+ * scanning, without building its key or value, and strings without escapes are cut out of the input
+ * in one piece. Values get the same types the Jetty parser gave them: integers become
+ * {@link Long}, other numbers {@link Double}, and objects and arrays become {@link BasicDBObject}
+ * and {@link BasicDBList}, which are stored the same way as the maps and arrays before.
+ * <p/>
+ * An instance keeps a reusable buffer and must not be shared between threads.
+ */
+class DemandbaseParser {
+    private static final String SKIPPED_KEY = "ip\"";
+
+    private final StringBuilder buffer = new StringBuilder();
+    private String json;
+    private int pos;
+
+    /**
+     * Returns the document for {@code json} without its {@code ip} field, or {@code null} if the
+     * value is not a JSON object, such as {@code (not set)}.
+     *
+     * @throws IllegalArgumentException if the value is a malformed JSON object.
+     */
+    BasicDBObject parse(String json) {
+        this.json = json;
+        this.pos = 0;
+        skipWhitespace();
+        if (pos >= json.length() || json.charAt(pos) != '{') {
+            return null;
+        }
+        BasicDBObject document = parseObject(true);
+        this.json = null;
+        return document;
+    }
+
+    private BasicDBObject parseObject(boolean topLevel) {
+        BasicDBObject object = new BasicDBObject();
+        pos++;
+        skipWhitespace();
+        if (peek() == '}') {
+            pos++;
+            return object;
+        }
+        while (true) {
+            skipWhitespace();
+            expect('"');
+            boolean skip = topLevel && json.startsWith(SKIPPED_KEY, pos);
+            String key = null;
+            if (skip) {
+                pos += SKIPPED_KEY.length();
+            } else {
+                key = parseStringBody();
+            }
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            if (skip) {
+                skipValue();
+            } else {
+                object.put(key, parseValue());
+            }
+            skipWhitespace();
+            char c = next();
+            if (c == '}') {
+                return object;
+            }
+            if (c != ',') {
+                throw malformed("expected , or }");
+            }
+        }
+    }
+
+    private BasicDBList parseArray() {
+        BasicDBList array = new BasicDBList();
+        pos++;
+        skipWhitespace();
+        if (peek() == ']') {
+            pos++;
+            return array;
+        }
+        while (true) {
+            skipWhitespace();
+            array.add(parseValue());
+            skipWhitespace();
+            char c = next();
+            if (c == ']') {
+                return array;
+            }
+            if (c != ',') {
+                throw malformed("expected , or ]");
+            }
+        }
+    }
+
+    private Object parseValue() {
+        char c = peek();
+        switch (c) {
+            case '"':
+                pos++;
+                return parseStringBody();
+            case '{':
+                return parseObject(false);
+            case '[':
+                return parseArray();
+            case 't':
+                expectLiteral("true");
+                return Boolean.TRUE;
+            case 'f':
+                expectLiteral("false");
+                return Boolean.FALSE;
+            case 'n':
+                expectLiteral("null");
+                return null;
+            default:
+                return parseNumber();
+        }
+    }
+
+    /**
+     * Parses a string whose opening quote has been consumed, up to and including the closing quote.
+     */
+    private String parseStringBody() {
+        int start = pos;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                return json.substring(start, pos++);
+            }
+            if (c == '\\') {
+                return parseEscapedStringBody(start);
+            }
+            pos++;
+        }
+        throw malformed("unterminated string");
+    }
+
+    private String parseEscapedStringBody(int start) {
+        buffer.setLength(0);
+        buffer.append(json, start, pos);
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                return buffer.toString();
+            }
+            if (c != '\\') {
+                buffer.append(c);
+                continue;
+            }
+            char escaped = next();
+            switch (escaped) {
+                case 'n':
+                    buffer.append('\n');
+                    break;
+                case 't':
+                    buffer.append('\t');
+                    break;
+                case 'r':
+                    buffer.append('\r');
+                    break;
+                case 'b':
+                    buffer.append('\b');
+                    break;
+                case 'f':
+                    buffer.append('\f');
+                    break;
+                case 'u':
+                    if (pos + 4 > json.length()) {
+                        throw malformed("truncated unicode escape");
+                    }
+                    int code = 0;
+                    for (int i = 0; i < 4; i++) {
+                        int digit = Character.digit(json.charAt(pos++), 16);
+                        if (digit < 0) {
+                            throw malformed("bad unicode escape");
+                        }
+                        code = code * 16 + digit;
+                    }
+                    buffer.append((char) code);
+                    break;
+                default:
+                    buffer.append(escaped);
+            }
+        }
+        throw malformed("unterminated string");
+    }
+
+    private Object parseNumber() {
+        int start = pos;
+        boolean decimal = false;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '.' || c == 'e' || c == 'E') {
+                decimal = true;
+            } else if (!(c >= '0' && c <= '9') && c != '-' && c != '+') {
+                break;
+            }
+            pos++;
+        }
+        if (start == pos) {
+            throw malformed("unexpected character");
+        }
+        String number = json.substring(start, pos);
+        if (!decimal) {
+            try {
+                return Long.valueOf(number);
+            } catch (NumberFormatException e) {
+                // too large for a long
+            }
+        }
+        try {
+            return Double.valueOf(number);
+        } catch (NumberFormatException e) {
+            throw malformed("bad number");
+        }
+    }
+
+    /**
+     * Moves past the value at the current position without building it.
+     */
+    private void skipValue() {
+        int depth = 0;
+        while (pos < json.length()) {
+            char c = json.charAt(pos);
+            if (c == '"') {
+                pos++;
+                skipStringBody();
+                if (depth == 0) {
+                    return;
+                }
+                continue;
+            }
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+                if (depth == 0) {
+                    pos++;
+                    return;
+                }
+            } else if (c == ',' && depth == 0) {
+                return;
+            }
+            pos++;
+        }
+        throw malformed("unterminated value");
+    }
+
+    private void skipStringBody() {
+        while (pos < json.length()) {
+            char c = json.charAt(pos++);
+            if (c == '"') {
+                return;
+            }
+            if (c == '\\') {
+                pos++;
+            }
+        }
+        throw malformed("unterminated string");
+    }
+
+    private void expectLiteral(String literal) {
+        if (!json.startsWith(literal, pos)) {
+            throw malformed("expected " + literal);
+        }
+        pos += literal.length();
+    }
+
+    private void expect(char expected) {
+        if (next() != expected) {
+            throw malformed("expected " + expected);
+        }
+    }
+
+    private char next() {
+        if (pos >= json.length()) {
+            throw malformed("unexpected end");
+        }
+        return json.charAt(pos++);
+    }
+
+    private char peek() {
+        if (pos >= json.length()) {
+            throw malformed("unexpected end");
+        }
+        return json.charAt(pos);
+    }
+
+    private void skipWhitespace() {
+        while (pos < json.length() && Character.isWhitespace(json.charAt(pos))) {
+            pos++;
+        }
+    }
+
+    private IllegalArgumentException malformed(String problem) {
+        return new IllegalArgumentException("Malformed Demandbase JSON, " + problem + " at " + pos + ": " + json);
+    }
+}
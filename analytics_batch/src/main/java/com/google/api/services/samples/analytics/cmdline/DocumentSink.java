@@ -0,0 +1,30 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.mongodb.DBObject;
+
+import java.util.Date;
+
+/**
+ * Where ingested documents are written, see {@link DocumentSinks} for the ones there are. Documents
+ * may be buffered until {@link #flush()}, after which everything added so far is written.
+ */
+public interface DocumentSink {
+
+    /**
+     * Adds a document.
+     *
+     * @param day the day the document belongs to, which file sinks partition by.
+     */
+    void add(Date day, DBObject document);
+
+    void flush();
+
+    /**
+     * Flushes and releases the sink.
+     */
+    void close();
+
+    long getWrittenCount();
+
+    long getFailedCount();
+}
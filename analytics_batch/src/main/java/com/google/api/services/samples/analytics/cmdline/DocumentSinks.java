@@ -0,0 +1,155 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+import java.io.File;
+import java.util.Date;
+
+/**
+ * Opens the sinks documents are written to: a collection, through a {@link BufferedBulkWriter}, the
+ * table of the same name in {@link ColumnarFileSink} files, or both. With both, a document reaches
+ * the files as it was added, before an insert gives it an {@code _id}.
+ */
+public class DocumentSinks {
+    private final boolean mongo;
+    private final File columnarDir;
+    private final boolean appendPartitions;
+
+    /**
+     * @param columnarDir      the directory of the columnar files, or {@code null} for none.
+     * @param appendPartitions whether the columnar files of a day are added to rather than replaced.
+     */
+    DocumentSinks(boolean mongo, File columnarDir, boolean appendPartitions) {
+        if (!mongo && columnarDir == null) {
+            throw new IllegalArgumentException("Documents have to be written somewhere");
+        }
+        this.mongo = mongo;
+        this.columnarDir = columnarDir;
+        this.appendPartitions = appendPartitions;
+    }
+
+    /**
+     * Reads {@code regus.sink}, {@code mongo} (the default), {@code columnar} or {@code both}, and
+     * {@code regus.sink.columnar.dir}, where columnar files go (default {@code columnar}).
+     */
+    public static DocumentSinks fromSystemProperties(boolean appendPartitions) {
+        String sink = System.getProperty("regus.sink", "mongo");
+        File columnarDir = new File(System.getProperty("regus.sink.columnar.dir", "columnar"));
+        if (sink.equals("mongo")) {
+            return new DocumentSinks(true, null, appendPartitions);
+        } else if (sink.equals("columnar")) {
+            return new DocumentSinks(false, columnarDir, appendPartitions);
+        } else if (sink.equals("both")) {
+            return new DocumentSinks(true, columnarDir, appendPartitions);
+        }
+        throw new IllegalArgumentException("Unknown regus.sink " + sink + ", expected mongo, columnar or both");
+    }
+
+    boolean writesMongo() {
+        return mongo;
+    }
+
+    boolean writesFiles() {
+        return columnarDir != null;
+    }
+
+    /**
+     * Returns sinks that write to the collection, and to the columnar files if these do.
+     */
+    DocumentSinks withMongo() {
+        return mongo ? this : new DocumentSinks(true, columnarDir, appendPartitions);
+    }
+
+    /**
+     * Returns sinks that write to the collection only.
+     */
+    DocumentSinks withoutFiles() {
+        return columnarDir == null ? withMongo() : new DocumentSinks(true, null, appendPartitions);
+    }
+
+    /**
+     * Returns sinks that write to the columnar files only, which these must write.
+     */
+    DocumentSinks withoutMongo() {
+        return mongo ? new DocumentSinks(false, columnarDir, appendPartitions) : this;
+    }
+
+    /**
+     * Returns sinks whose columnar files replace the partitions of the days written to.
+     */
+    DocumentSinks replacingPartitions() {
+        return appendPartitions ? new DocumentSinks(mongo, columnarDir, false) : this;
+    }
+
+    /**
+     * Opens a sink for inserts into {@code collection}, in batches of up to 1000 acknowledged ones.
+     */
+    public DocumentSink open(DBCollection collection) {
+        return open(collection, null, 1000, 0, WriteConcern.ACKNOWLEDGED, new IngestMetrics.StageTimer());
+    }
+
+    /**
+     * Opens a sink for {@code collection}, see {@link BufferedBulkWriter} for the settings of the
+     * collection's writes. Its writes are timed in {@code writes}.
+     *
+     * @param upsertKey the field documents are replaced by in the collection, or {@code null} to
+     *                  insert them.
+     */
+    DocumentSink open(DBCollection collection, String upsertKey, int batchSize, long flushIntervalMillis,
+                      WriteConcern writeConcern, IngestMetrics.StageTimer writes) {
+        DocumentSink files = columnarDir == null ? null
+                : new ColumnarFileSink(columnarDir, collection.getName(), appendPartitions, writes);
+        if (!mongo) {
+            return files;
+        }
+        DocumentSink writer = new BufferedBulkWriter(collection, batchSize, flushIntervalMillis, writeConcern,
+                upsertKey, writes);
+        return files == null ? writer : new BothSinks(writer, files);
+    }
+
+    /**
+     * Writes to a collection and to files. Counts are the collection's.
+     */
+    private static class BothSinks implements DocumentSink {
+        private final DocumentSink collection;
+        private final DocumentSink files;
+
+        BothSinks(DocumentSink collection, DocumentSink files) {
+            this.collection = collection;
+            this.files = files;
+        }
+
+        public void add(Date day, DBObject document) {
+            files.add(day, document);
+            collection.add(day, document);
+        }
+
+        public void flush() {
+            collection.flush();
+            files.flush();
+        }
+
+        public void close() {
+            try {
+                collection.close();
+            } finally {
+                files.close();
+            }
+        }
+
+        public long getWrittenCount() {
+            return collection.getWrittenCount();
+        }
+
+        public long getFailedCount() {
+            return collection.getFailedCount();
+        }
+
+        @Override
+        public String toString() {
+            return collection + " and " + files;
+        }
+    }
+}
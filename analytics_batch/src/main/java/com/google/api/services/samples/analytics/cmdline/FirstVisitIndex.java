@@ -0,0 +1,270 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@code firstVisitDate} of every visited company, by {@code demandbase_sid}, for a run that
+ * writes many days of visited companies, so that resolving the first visit of a page's companies
+ * needs no database read. The {@code ga} collection is read once when the index is created and the
+ * companies of the days written since are added as they are resolved, which requires days to be
+ * resolved in ascending order. Companies stored without a first visit date count as not seen.
+ * <p/>
+ * Up to {@code maxInMemory} companies are kept in a map. The others spill to two temporary files:
+ * their keys and dates, appended one after another, and an open addressing hash table over these,
+ * mapped into memory, that holds the hash of each key and where it was appended. A lookup of a
+ * spilled company reads the table and one key and date back, mostly from the page cache, so the
+ * heap holds no more than the map however many companies there are.
+ * <p/>
+ * Numeric sids compare by value, as they do in the query this replaces. Not thread safe.
+ */
+class FirstVisitIndex {
+    // hash of the key, then offset + 1 of its record, 0 for an empty slot
+    private static final int SLOT_BYTES = 12;
+    private static final int MIN_SLOTS = 1024;
+    private static final int MAX_SLOTS = Integer.MAX_VALUE / SLOT_BYTES;
+
+    private final int maxInMemory;
+    private final File spillDir;
+    private final Map<String, String> dates = new HashMap<String, String>();
+    private Spill spill;
+
+    FirstVisitIndex(DBCollection companies, int maxInMemory, File spillDir) {
+        this.maxInMemory = maxInMemory;
+        this.spillDir = spillDir;
+        long expected = companies.count();
+        DBCursor cursor = companies.find(new BasicDBObject(),
+                new BasicDBObject("demandbase_sid", 1).append("firstVisitDate", 1));
+        try {
+            while (cursor.hasNext()) {
+                DBObject stored = cursor.next();
+                Object sid = stored.get("demandbase_sid");
+                Object firstVisitDate = stored.get("firstVisitDate");
+                if (sid != null && firstVisitDate != null) {
+                    put(key(sid), firstVisitDate.toString(), expected);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        System.out.println("Loaded " + size() + " first visit dates from " + companies
+                + (spill != null ? ", " + spill.size + " of them spilled to " + spill.records : ""));
+    }
+
+    /**
+     * Returns the first visit date of company {@code sid}, which is {@code today} for a company not
+     * seen before. From then on {@code today} is its first visit date.
+     */
+    String firstVisitDate(Object sid, String today) {
+        String key = key(sid);
+        String date = dates.get(key);
+        if (date == null && spill != null) {
+            date = spill.get(key);
+        }
+        if (date == null) {
+            put(key, today, 0);
+            date = today;
+        }
+        return date;
+    }
+
+    long size() {
+        return dates.size() + (spill != null ? spill.size : 0);
+    }
+
+    /**
+     * Deletes the spill files.
+     */
+    void close() {
+        if (spill != null) {
+            spill.close();
+            spill = null;
+        }
+    }
+
+    /**
+     * Returns the key of {@code sid}, the same for numbers of equal value whatever their type.
+     */
+    static String key(Object sid) {
+        if (sid instanceof Long || sid instanceof Integer || sid instanceof Short || sid instanceof Byte) {
+            return "#" + ((Number) sid).longValue();
+        }
+        if (sid instanceof Number) {
+            double value = ((Number) sid).doubleValue();
+            return value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE ? "#" + (long) value : "#" + value;
+        }
+        return "\"" + sid;
+    }
+
+    /**
+     * @param expected the number of companies expected in all, to size the spill for.
+     */
+    private void put(String key, String date, long expected) {
+        if (dates.size() < maxInMemory) {
+            dates.put(key, date);
+            return;
+        }
+        try {
+            if (spill == null) {
+                spill = new Spill(spillDir, expected - maxInMemory);
+            }
+            spill.put(key, date);
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot spill first visit dates to " + spillDir, e);
+        }
+    }
+
+    /**
+     * The companies beyond {@code maxInMemory}, on disk.
+     */
+    private static class Spill {
+        private final File records;
+        private final RandomAccessFile recordReader;
+        private final DataOutputStream recordWriter;
+        private long recordsLength;
+        private boolean unflushed;
+        private File slotsFile;
+        private MappedByteBuffer slots;
+        private int slotCount;
+        private long size;
+
+        Spill(File dir, long expected) throws IOException {
+            this.records = File.createTempFile("first-visits", ".records", dir);
+            records.deleteOnExit();
+            this.recordWriter = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(records), 64 * 1024));
+            this.recordReader = new RandomAccessFile(records, "r");
+            int count = MIN_SLOTS;
+            // at most half full
+            while (count < expected * 2 && count <= MAX_SLOTS / 2) {
+                count *= 2;
+            }
+            mapSlots(count);
+        }
+
+        String get(String key) {
+            int hash = hash(key);
+            try {
+                for (int slot = hash & (slotCount - 1); ; slot = (slot + 1) & (slotCount - 1)) {
+                    long offset = slots.getLong(slot * SLOT_BYTES + 4);
+                    if (offset == 0) {
+                        return null;
+                    }
+                    if (slots.getInt(slot * SLOT_BYTES) == hash) {
+                        if (unflushed) {
+                            recordWriter.flush();
+                            unflushed = false;
+                        }
+                        recordReader.seek(offset - 1);
+                        if (readString().equals(key)) {
+                            return readString();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read spilled first visit dates from " + records, e);
+            }
+        }
+
+        void put(String key, String date) throws IOException {
+            if (size * 2 >= slotCount) {
+                if (slotCount > MAX_SLOTS / 2) {
+                    throw new IllegalStateException("Too many first visit dates to spill, " + size);
+                }
+                rehash();
+            }
+            long offset = recordsLength;
+            recordsLength += writeString(key) + writeString(date);
+            unflushed = true;
+            insert(slots, slotCount, hash(key), offset + 1);
+            size++;
+        }
+
+        void close() {
+            try {
+                recordWriter.close();
+                recordReader.close();
+            } catch (IOException e) {
+                System.err.println("Cannot close " + records + ": " + e);
+            }
+            // unmapped once the buffer is collected, where a mapped file cannot be deleted this
+            // leaves it to deleteOnExit
+            slots = null;
+            records.delete();
+            slotsFile.delete();
+        }
+
+        /**
+         * Appends {@code value} as its length and UTF-8 bytes.
+         *
+         * @return the number of bytes appended.
+         */
+        private int writeString(String value) throws IOException {
+            byte[] bytes = value.getBytes("UTF-8");
+            recordWriter.writeInt(bytes.length);
+            recordWriter.write(bytes);
+            return 4 + bytes.length;
+        }
+
+        private String readString() throws IOException {
+            byte[] bytes = new byte[recordReader.readInt()];
+            recordReader.readFully(bytes);
+            return new String(bytes, "UTF-8");
+        }
+
+        private void rehash() throws IOException {
+            MappedByteBuffer old = slots;
+            int oldCount = slotCount;
+            File oldFile = slotsFile;
+            mapSlots(oldCount * 2);
+            for (int slot = 0; slot < oldCount; slot++) {
+                long offset = old.getLong(slot * SLOT_BYTES + 4);
+                if (offset != 0) {
+                    insert(slots, slotCount, old.getInt(slot * SLOT_BYTES), offset);
+                }
+            }
+            oldFile.delete();
+        }
+
+        private void mapSlots(int count) throws IOException {
+            File file = File.createTempFile("first-visits", ".slots", records.getParentFile());
+            file.deleteOnExit();
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                // a new file reads as zeros, every slot empty
+                raf.setLength((long) count * SLOT_BYTES);
+                slots = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) count * SLOT_BYTES);
+            } finally {
+                raf.close();
+            }
+            slotsFile = file;
+            slotCount = count;
+        }
+
+        private static void insert(MappedByteBuffer slots, int slotCount, int hash, long offsetPlusOne) {
+            int slot = hash & (slotCount - 1);
+            while (slots.getLong(slot * SLOT_BYTES + 4) != 0) {
+                slot = (slot + 1) & (slotCount - 1);
+            }
+            slots.putInt(slot * SLOT_BYTES, hash);
+            slots.putLong(slot * SLOT_BYTES + 4, offsetPlusOne);
+        }
+
+        private static int hash(String key) {
+            int h = key.hashCode() * 0x9E3779B9;
+            return h ^ (h >>> 16);
+        }
+    }
+}
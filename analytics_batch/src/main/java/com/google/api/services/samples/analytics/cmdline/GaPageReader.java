@@ -0,0 +1,43 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+
+import java.io.IOException;
+
+/**
+ * Reads the pages of a Core Reporting query in order, following {@code nextLink} until the last
+ * page. Call {@link #close()} when done, also when giving up early.
+ */
+abstract class GaPageReader {
+
+    /**
+     * Returns the next page, or {@code null} once every page has been read.
+     */
+    abstract GaData next() throws IOException;
+
+    abstract void close();
+
+    /**
+     * Returns a reader without any pages.
+     */
+    static GaPageReader empty() {
+        return new GaPageReader() {
+            @Override
+            GaData next() {
+                return null;
+            }
+
+            @Override
+            void close() {
+            }
+        };
+    }
+
+    static boolean hasNextPage(GaData gaData) {
+        return gaData.getNextLink() != null && !gaData.getNextLink().isEmpty();
+    }
+
+    static int nextStartIndex(GaData gaData) {
+        return gaData.getQuery().getStartIndex() + gaData.getQuery().getMaxResults();
+    }
+}
@@ -0,0 +1,17 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+
+import java.io.IOException;
+
+/**
+ * Fetches a single page of a Core Reporting query.
+ */
+interface GaPageSource {
+
+    /**
+     * Executes the query for the page starting at {@code startIndex}. A start index of 0 asks for the
+     * first page.
+     */
+    GaData fetch(int startIndex) throws IOException;
+}
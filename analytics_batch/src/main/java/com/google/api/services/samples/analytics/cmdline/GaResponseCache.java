@@ -0,0 +1,200 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.http.HttpResponse;
+import com.google.api.services.analytics.Analytics;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Keeps the raw JSON of Core Reporting responses on disk, gzipped, so replays and reruns of the same
+ * pages do not spend API quota again.
+ * <p/>
+ * A response is keyed by the full request URL, which holds every parameter of the query: table id,
+ * dates, metrics, dimensions, filters, start index and max results. Entries older than
+ * {@code maxAgeMillis} are ignored and deleted, and the oldest entries are deleted once the cache
+ * grows beyond {@code maxBytes}. Queries that end today or later bypass the cache unless
+ * {@code includeToday} is set, since that data is still changing. Only the requests that miss the
+ * cache go through the {@link AnalyticsRequestGovernor}.
+ */
+class GaResponseCache {
+    private final File dir;
+    private final long maxBytes;
+    private final long maxAgeMillis;
+    private final boolean includeToday;
+    private final AnalyticsRequestGovernor governor;
+    private final AtomicLong size = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    GaResponseCache(File dir, long maxBytes, long maxAgeMillis, boolean includeToday,
+                    AnalyticsRequestGovernor governor) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create response cache directory " + dir);
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.maxAgeMillis = maxAgeMillis;
+        this.includeToday = includeToday;
+        this.governor = governor;
+        evict();
+    }
+
+    /**
+     * Returns the raw JSON of the cached response to {@code get}, or executes it and caches the
+     * response. The caller closes the stream.
+     */
+    InputStream open(final Analytics.Data.Ga.Get get) throws IOException {
+        if (!includeToday && !isBeforeToday(get.getEndDate())) {
+            return new ByteArrayInputStream(fetch(get));
+        }
+        String url = get.buildHttpRequestUrl().build();
+        File entry = new File(dir, Sha1.of(url) + ".json.gz");
+
+        byte[] json = read(entry);
+        if (json != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            json = fetch(get);
+            write(entry, json);
+        }
+        return new ByteArrayInputStream(json);
+    }
+
+    /**
+     * Executes {@code get} within the quota and reads the whole response.
+     */
+    private byte[] fetch(final Analytics.Data.Ga.Get get) throws IOException {
+        return governor.execute(new AnalyticsRequestGovernor.Call<byte[]>() {
+            public byte[] call() throws IOException {
+                HttpResponse response = get.executeUnparsed();
+                try {
+                    return toByteArray(response.getContent());
+                } finally {
+                    response.disconnect();
+                }
+            }
+        });
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    private byte[] read(File entry) throws IOException {
+        if (!entry.isFile()) {
+            return null;
+        }
+        if (System.currentTimeMillis() - entry.lastModified() > maxAgeMillis) {
+            delete(entry);
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new GZIPInputStream(new FileInputStream(entry));
+            return toByteArray(in);
+        } catch (IOException e) {
+            // evicted meanwhile or corrupt, fetch it again
+            delete(entry);
+            return null;
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private void write(File entry, byte[] json) throws IOException {
+        // written under a temporary name and renamed, so readers never see a partial entry
+        File tmp = File.createTempFile(entry.getName(), ".tmp", dir);
+        OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp));
+        try {
+            out.write(json);
+        } finally {
+            out.close();
+        }
+        long length = tmp.length();
+        if (!tmp.renameTo(entry)) {
+            entry.delete();
+            if (!tmp.renameTo(entry)) {
+                tmp.delete();
+                return;
+            }
+        }
+        if (size.addAndGet(length) > maxBytes) {
+            evict();
+        }
+    }
+
+    /**
+     * Deletes the expired entries, then the oldest ones until the cache fits in {@code maxBytes}.
+     */
+    private synchronized void evict() {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        Arrays.sort(entries, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+            }
+        });
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (File entry : entries) {
+            total += entry.length();
+        }
+        for (File entry : entries) {
+            if (total <= maxBytes && now - entry.lastModified() <= maxAgeMillis) {
+                continue;
+            }
+            long length = entry.length();
+            if (entry.delete()) {
+                total -= length;
+            }
+        }
+        size.set(total);
+    }
+
+    private void delete(File entry) {
+        long length = entry.length();
+        if (entry.delete()) {
+            size.addAndGet(-length);
+        }
+    }
+
+    private static boolean isBeforeToday(String endDate) {
+        // "today", "yesterday" and "NdaysAgo" are relative, so never cached
+        return endDate != null && endDate.matches("\\d{4}-\\d{2}-\\d{2}")
+                && endDate.compareTo(new SimpleDateFormat("yyyy-MM-dd").format(new Date())) < 0;
+    }
+
+    private static byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+}
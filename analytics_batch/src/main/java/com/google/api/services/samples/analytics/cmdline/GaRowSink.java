@@ -0,0 +1,25 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+
+import java.util.List;
+
+/**
+ * Receives the rows of a Core Reporting page one at a time.
+ */
+interface GaRowSink {
+
+    /**
+     * Called before the rows of a page.
+     *
+     * @param gaData the page; its rows may not be filled in.
+     * @return whether the sink wants the page's rows.
+     */
+    boolean startPage(GaData gaData);
+
+    /**
+     * Called for every row of a page whose rows were asked for. The list may be reused for the next
+     * row, so it must not be kept.
+     */
+    void row(List<String> rowValues);
+}
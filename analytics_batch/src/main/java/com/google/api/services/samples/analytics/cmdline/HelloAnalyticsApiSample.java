@@ -19,7 +19,6 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
@@ -73,6 +72,9 @@ public class HelloAnalyticsApiSample {
   /** Global instance of the JSON factory. */
   private static final JsonFactory JSON_FACTORY = JacksonFactory.getDefaultInstance();
 
+  /** Paces the Core Reporting requests, see {@link AnalyticsRequestGovernor}. */
+  private static final AnalyticsRequestGovernor GOVERNOR = AnalyticsRequestGovernor.fromSystemProperties();
+
   /**
    * Main demo. This first initializes an analytics service object. It then uses the Google
    * Analytics Management API to get the first profile ID for the authorized user. It then uses the
@@ -83,7 +85,7 @@ public class HelloAnalyticsApiSample {
    */
   public static void main(String[] args) {
     try {
-      httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+      httpTransport = AnalyticsHttpTransports.newTransport();
       dataStoreFactory = new FileDataStoreFactory(DATA_STORE_DIR);
       Analytics analytics = initializeAnalytics();
       String profileId = getFirstProfileId(analytics);
@@ -93,6 +95,7 @@ public class HelloAnalyticsApiSample {
         GaData gaData = executeDataQuery(analytics, profileId);
         printGaData(gaData);
       }
+      AnalyticsHttpTransports.printMeasurements();
     } catch (GoogleJsonResponseException e) {
       System.err.println("There was a service error: " + e.getDetails().getCode() + " : "
           + e.getDetails().getMessage());
@@ -193,15 +196,14 @@ public class HelloAnalyticsApiSample {
    * @throws IOException tf an API error occured.
    */
   private static GaData executeDataQuery(Analytics analytics, String profileId) throws IOException {
-    return analytics.data().ga().get("ga:" + profileId, // Table Id. ga: + profile id.
+    return GOVERNOR.execute(analytics.data().ga().get("ga:" + profileId, // Table Id. ga: + profile id.
         "2012-01-01", // Start date.
         "2012-01-14", // End date.
         "ga:visits") // Metrics.
         .setDimensions("ga:source,ga:keyword")
         .setSort("-ga:visits,ga:source")
         .setFilters("ga:medium==organic")
-        .setMaxResults(25)
-        .execute();
+        .setMaxResults(25));
   }
 
   /**
@@ -0,0 +1,128 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import org.bson.types.ObjectId;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Remembers how far the ingestion of each query and day got, in the {@code ingest_state}
+ * collection, so a run that died can resume at the first page that was not written yet.
+ * <p/>
+ * There is one watermark document per query, day and filter (a sampled day is read in
+ * {@code ga:hour} slices, each with its own filter), holding the start index of the next page to
+ * read. It is moved forward after every page, once the page's rows are written. When every page of
+ * a query and day is written, a separate day document is marked complete.
+ * <p/>
+ * Without {@code resume}, each query and day starts from scratch and its old state is cleared.
+ * With {@code resume}, complete days are skipped and the others continue from their watermarks.
+ */
+class IngestCheckpointStore {
+
+    /**
+     * Returned by {@link #resumeStartIndex} when every page has already been written.
+     */
+    static final int COMPLETE = -1;
+
+    private final DBCollection state;
+    private final boolean resume;
+
+    IngestCheckpointStore(DBCollection state, boolean resume) {
+        this.state = state;
+        this.resume = resume;
+    }
+
+    /**
+     * Returns whether the query was completely written for the day by an earlier run, in which case
+     * it does not have to be read again. Without {@code resume} the day's state is cleared instead.
+     */
+    boolean skipDay(String query, Date d) {
+        String day = day(d);
+        if (resume) {
+            DBObject dayState = state.findOne(new BasicDBObject("_id", query + "|" + day));
+            return dayState != null && Boolean.TRUE.equals(dayState.get("complete"));
+        }
+        state.remove(new BasicDBObject("report", query).append("date", day));
+        return false;
+    }
+
+    void dayComplete(String query, Date d) {
+        String day = day(d);
+        state.update(new BasicDBObject("_id", query + "|" + day),
+                new BasicDBObject("$set", new BasicDBObject("report", query)
+                        .append("date", day)
+                        .append("complete", true)
+                        .append("updatedAt", new Date())),
+                true, false);
+    }
+
+    /**
+     * Returns the marker that the rows written for the query and day in this run carry. A resumed
+     * day keeps the marker of the run it resumes, so the rows written before the restart count as
+     * this run's too.
+     */
+    String dayRun(String query, Date d) {
+        String day = day(d);
+        BasicDBObject id = new BasicDBObject("_id", query + "|" + day);
+        if (resume) {
+            DBObject dayState = state.findOne(id);
+            if (dayState != null && dayState.get("run") != null) {
+                return dayState.get("run").toString();
+            }
+        }
+        String run = new ObjectId().toString();
+        state.update(id, new BasicDBObject("$set", new BasicDBObject("report", query)
+                .append("date", day)
+                .append("run", run)
+                .append("updatedAt", new Date())),
+                true, false);
+        return run;
+    }
+
+    /**
+     * Returns the start index to read the query from: 0 for the first page, the watermark of an
+     * earlier run, or {@link #COMPLETE}.
+     */
+    int resumeStartIndex(String query, Date d, String filters) {
+        if (!resume) {
+            return 0;
+        }
+        DBObject watermark = state.findOne(new BasicDBObject("_id", pageKey(query, day(d), filters)));
+        if (watermark == null) {
+            return 0;
+        }
+        if (Boolean.TRUE.equals(watermark.get("complete"))) {
+            return COMPLETE;
+        }
+        return ((Number) watermark.get("nextStartIndex")).intValue();
+    }
+
+    /**
+     * Moves the watermark past {@code gaData}. Call only once the page's rows are written.
+     *
+     * @param filters the filters the page's query was built with, as passed to {@link #resumeStartIndex}.
+     */
+    void pageWritten(String query, Date d, String filters, GaData gaData) {
+        String day = day(d);
+        state.update(new BasicDBObject("_id", pageKey(query, day, filters)),
+                new BasicDBObject("$set", new BasicDBObject("report", query)
+                        .append("date", day)
+                        .append("filters", filters)
+                        .append("nextStartIndex", GaPageReader.nextStartIndex(gaData))
+                        .append("complete", !GaPageReader.hasNextPage(gaData))
+                        .append("updatedAt", new Date())),
+                true, false);
+    }
+
+    private static String pageKey(String query, String day, String filters) {
+        return query + "|" + day + "|" + filters;
+    }
+
+    private static String day(Date d) {
+        return new SimpleDateFormat("yyyy-MM-dd").format(d);
+    }
+}
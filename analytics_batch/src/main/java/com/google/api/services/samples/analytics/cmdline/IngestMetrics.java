@@ -0,0 +1,337 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Times the stages of the ingestion per query and per day, each in a {@link LatencyHistogram} with a
+ * count of the items it handled:
+ * <ul>
+ * <li>{@code fetch}, per request, from sending it until its response headers are in, or until a
+ * cached response is read. The body of a response from the API is read while it is decoded.</li>
+ * <li>{@code decode}, per page, parsing the response. For a streamed page this includes handling its
+ * rows, which are timed in the stages below as well.</li>
+ * <li>{@code transform}, per row, turning it into a document, lookups included.</li>
+ * <li>{@code lookup}, per centre lookup of a page path, or per page of visited companies whose
+ * stored first visit dates are queried.</li>
+ * <li>{@code write}, per bulk write to MongoDB or part of columnar files, with the documents written
+ * as items.</li>
+ * </ul>
+ * Days read with one multi-day query are fetched, decoded and, for visit attributes, written under
+ * their date range, {@code from..to}, instead of a single day.
+ * <p/>
+ * Every stage of a query is published over JMX as {@code <domain>:type=IngestStage,query=..,stage=..}
+ * with the totals over all days, and {@link #writeSummary} writes everything, per day, as JSON.
+ */
+class IngestMetrics {
+    private static final String JMX_DOMAIN = "com.google.api.services.samples.analytics";
+
+    enum Stage {
+        FETCH, DECODE, TRANSFORM, LOOKUP, WRITE;
+
+        String label() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Records one stage of one query on one day.
+     */
+    static class StageTimer {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final AtomicLong items = new AtomicLong();
+
+        /**
+         * Records the time since {@code startNanos}, taken from {@link System#nanoTime()}, for
+         * {@code count} items.
+         */
+        void record(long startNanos, long count) {
+            latencies.record(System.nanoTime() - startNanos);
+            items.addAndGet(count);
+        }
+    }
+
+    /**
+     * The stages of one query on one day.
+     */
+    static class Stages {
+        final StageTimer fetch = new StageTimer();
+        final StageTimer decode = new StageTimer();
+        final StageTimer transform = new StageTimer();
+        final StageTimer lookup = new StageTimer();
+        final StageTimer write = new StageTimer();
+
+        StageTimer get(Stage stage) {
+            switch (stage) {
+                case FETCH:
+                    return fetch;
+                case DECODE:
+                    return decode;
+                case TRANSFORM:
+                    return transform;
+                case LOOKUP:
+                    return lookup;
+                default:
+                    return write;
+            }
+        }
+    }
+
+    private final boolean publishJmx;
+    private final long startedAt = System.currentTimeMillis();
+    // query -> day -> stages, days in order for the summary
+    private final ConcurrentMap<String, ConcurrentSkipListMap<String, Stages>> queries =
+            new ConcurrentHashMap<String, ConcurrentSkipListMap<String, Stages>>();
+
+    IngestMetrics(boolean publishJmx) {
+        this.publishJmx = publishJmx;
+    }
+
+    Stages stages(String query, Date d) {
+        return stages(query, day(d));
+    }
+
+    /**
+     * Returns the stages of a multi-day query for the days {@code from} to {@code to}.
+     */
+    Stages stages(String query, Date from, Date to) {
+        return stages(query, day(from) + ".." + day(to));
+    }
+
+    private Stages stages(String query, String day) {
+        ConcurrentSkipListMap<String, Stages> days = queries.get(query);
+        if (days == null) {
+            ConcurrentSkipListMap<String, Stages> created = new ConcurrentSkipListMap<String, Stages>();
+            days = queries.putIfAbsent(query, created);
+            if (days == null) {
+                days = created;
+                if (publishJmx) {
+                    register(query, created);
+                }
+            }
+        }
+        Stages stages = days.get(day);
+        if (stages == null) {
+            Stages created = new Stages();
+            stages = days.putIfAbsent(day, created);
+            if (stages == null) {
+                stages = created;
+            }
+        }
+        return stages;
+    }
+
+    /**
+     * Prints the totals of every stage of every query.
+     */
+    void printSummary() {
+        for (Map.Entry<String, ConcurrentSkipListMap<String, Stages>> query : queries.entrySet()) {
+            for (Stage stage : Stage.values()) {
+                LatencyHistogram total = new LatencyHistogram();
+                long items = total(query.getValue(), stage, total);
+                if (total.getCount() == 0) {
+                    continue;
+                }
+                System.out.println(query.getKey() + " " + stage.label() + ": " + total.getCount() + " times, "
+                        + items + " items, " + millis(total.getTotalNanos()) + " ms, p50 "
+                        + millis(total.getValueAtPercentile(50)) + " ms, p99 "
+                        + millis(total.getValueAtPercentile(99)) + " ms, max " + millis(total.getMaxNanos()) + " ms");
+            }
+        }
+    }
+
+    /**
+     * Writes the stages of every query, in total and per day, as JSON to {@code file}.
+     */
+    void writeSummary(File file) throws IOException {
+        SimpleDateFormat timestamp = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+        JsonGenerator json = new JsonFactory().createGenerator(file, JsonEncoding.UTF8);
+        try {
+            json.useDefaultPrettyPrinter();
+            json.writeStartObject();
+            json.writeStringField("started", timestamp.format(new Date(startedAt)));
+            json.writeStringField("finished", timestamp.format(new Date()));
+            json.writeObjectFieldStart("queries");
+            for (Map.Entry<String, ConcurrentSkipListMap<String, Stages>> query : queries.entrySet()) {
+                json.writeObjectFieldStart(query.getKey());
+                json.writeObjectFieldStart("total");
+                for (Stage stage : Stage.values()) {
+                    LatencyHistogram total = new LatencyHistogram();
+                    long items = total(query.getValue(), stage, total);
+                    writeStage(json, stage, total, items);
+                }
+                json.writeEndObject();
+                json.writeObjectFieldStart("days");
+                for (Map.Entry<String, Stages> day : query.getValue().entrySet()) {
+                    json.writeObjectFieldStart(day.getKey());
+                    for (Stage stage : Stage.values()) {
+                        StageTimer timer = day.getValue().get(stage);
+                        writeStage(json, stage, timer.latencies, timer.items.get());
+                    }
+                    json.writeEndObject();
+                }
+                json.writeEndObject();
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        } finally {
+            json.close();
+        }
+        System.out.println("Wrote ingestion metrics to " + file);
+    }
+
+    private static void writeStage(JsonGenerator json, Stage stage, LatencyHistogram latencies, long items)
+            throws IOException {
+        if (latencies.getCount() == 0) {
+            return;
+        }
+        json.writeObjectFieldStart(stage.label());
+        json.writeNumberField("count", latencies.getCount());
+        json.writeNumberField("items", items);
+        json.writeNumberField("totalMillis", millis(latencies.getTotalNanos()));
+        json.writeNumberField("meanMillis", millis(latencies.getTotalNanos() / latencies.getCount()));
+        json.writeNumberField("p50Millis", millis(latencies.getValueAtPercentile(50)));
+        json.writeNumberField("p90Millis", millis(latencies.getValueAtPercentile(90)));
+        json.writeNumberField("p99Millis", millis(latencies.getValueAtPercentile(99)));
+        json.writeNumberField("p999Millis", millis(latencies.getValueAtPercentile(99.9)));
+        json.writeNumberField("maxMillis", millis(latencies.getMaxNanos()));
+        json.writeEndObject();
+    }
+
+    /**
+     * Adds the latencies of {@code stage} on every day to {@code total}.
+     *
+     * @return the items of the stage on every day.
+     */
+    private static long total(Map<String, Stages> days, Stage stage, LatencyHistogram total) {
+        long items = 0;
+        for (Stages stages : days.values()) {
+            StageTimer timer = stages.get(stage);
+            total.add(timer.latencies);
+            items += timer.items.get();
+        }
+        return items;
+    }
+
+    private static double millis(long nanos) {
+        // fractions kept, a transform of one row takes microseconds
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    private static String day(Date d) {
+        return new SimpleDateFormat("yyyy-MM-dd").format(d);
+    }
+
+    private static void register(String query, Map<String, Stages> days) {
+        for (Stage stage : Stage.values()) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new StageMBean(days, stage),
+                        new ObjectName(JMX_DOMAIN + ":type=IngestStage,query=" + ObjectName.quote(query)
+                                + ",stage=" + stage.label()));
+            } catch (JMException e) {
+                System.err.println("Cannot publish the " + stage.label() + " metrics of " + query + " over JMX: " + e);
+            }
+        }
+    }
+
+    /**
+     * Publishes the totals of one stage of a query, over the days recorded so far. A dynamic MBean,
+     * since standard MBeans need a public interface.
+     */
+    private static class StageMBean implements DynamicMBean {
+        private static final String[] ATTRIBUTES = {
+                "Count", "Items", "TotalMillis", "MeanMillis", "P50Millis", "P90Millis", "P99Millis", "MaxMillis"};
+
+        private final Map<String, Stages> days;
+        private final Stage stage;
+
+        StageMBean(Map<String, Stages> days, Stage stage) {
+            this.days = days;
+            this.stage = stage;
+        }
+
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            LatencyHistogram total = new LatencyHistogram();
+            long items = total(days, stage, total);
+            long count = total.getCount();
+            if ("Count".equals(attribute)) {
+                return count;
+            } else if ("Items".equals(attribute)) {
+                return items;
+            } else if ("TotalMillis".equals(attribute)) {
+                return millis(total.getTotalNanos());
+            } else if ("MeanMillis".equals(attribute)) {
+                return count == 0 ? 0.0 : millis(total.getTotalNanos() / count);
+            } else if ("P50Millis".equals(attribute)) {
+                return millis(total.getValueAtPercentile(50));
+            } else if ("P90Millis".equals(attribute)) {
+                return millis(total.getValueAtPercentile(90));
+            } else if ("P99Millis".equals(attribute)) {
+                return millis(total.getValueAtPercentile(99));
+            } else if ("MaxMillis".equals(attribute)) {
+                return millis(total.getMaxNanos());
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // left out, as the contract asks
+                }
+            }
+            return list;
+        }
+
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read only");
+        }
+
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+            // there are no operations
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        public MBeanInfo getMBeanInfo() {
+            MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[ATTRIBUTES.length];
+            for (int i = 0; i < ATTRIBUTES.length; i++) {
+                String type = i < 2 ? Long.class.getName() : Double.class.getName();
+                attributes[i] = new MBeanAttributeInfo(ATTRIBUTES[i], type, ATTRIBUTES[i] + " of the "
+                        + stage.label() + " stage over all days so far", true, false, false);
+            }
+            return new MBeanInfo(getClass().getName(), "Ingestion stage " + stage.label(), attributes,
+                    null, new MBeanOperationInfo[0], null);
+        }
+    }
+}
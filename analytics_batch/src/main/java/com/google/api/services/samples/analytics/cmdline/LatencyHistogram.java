@@ -0,0 +1,112 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts latencies in nanoseconds in log-linear buckets, the way an HdrHistogram does: every power of
+ * two is split into {@value #SUB_BUCKETS} equal buckets, so a percentile is off by at most 1/16th of
+ * its value, whatever the range, in a fixed {@value #BUCKETS} counters. Latencies of about 39 hours
+ * and more all fall into the last bucket.
+ * <p/>
+ * Recording is lock free and may happen on any number of threads.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 42;
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    private final AtomicIntegerArray counts = new AtomicIntegerArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(bucket(nanos));
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    /**
+     * Adds the latencies recorded by {@code other} to this histogram.
+     */
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            int n = other.counts.get(i);
+            if (n > 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.addAndGet(other.count.get());
+        totalNanos.addAndGet(other.totalNanos.get());
+        long max = maxNanos.get();
+        long otherMax = other.maxNanos.get();
+        while (otherMax > max && !maxNanos.compareAndSet(max, otherMax)) {
+            max = maxNanos.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getTotalNanos() {
+        return totalNanos.get();
+    }
+
+    long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Returns the latency that {@code percentile} percent of the recorded latencies do not exceed, as
+     * the highest value of its bucket, or 0 when nothing was recorded.
+     */
+    long getValueAtPercentile(double percentile) {
+        long total = count.get();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    private static int bucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BUCKET_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        // the bits below the leading one that fit in a sub-bucket pick it
+        return (shift + 1) * SUB_BUCKETS + (int) (nanos >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValue(int bucket) {
+        int shift = bucket / SUB_BUCKETS - 1;
+        if (shift < 0) {
+            return bucket;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -18,8 +18,11 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
@@ -86,10 +89,11 @@ public class ManagementApiReferenceSample {
    */
   public static void main(String args[]) {
     try {
-      HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+      HTTP_TRANSPORT = AnalyticsHttpTransports.newTransport();
       DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
       Analytics analytics = initializeAnalytics();
       printManagementEntities(analytics);
+      AnalyticsHttpTransports.printMeasurements();
 
     } catch (GoogleJsonResponseException e) {
       System.err.println("There was a service error: " + e.getDetails().getCode() + " : "
@@ -148,8 +152,37 @@ public class ManagementApiReferenceSample {
    */
   private static void printManagementEntities(Analytics analytics) throws IOException {
 
+    // Query the accounts and segments collections, which do not depend on each other, in one batch.
+    final Accounts[] accountsResult = new Accounts[1];
+    final Segments[] segmentsResult = new Segments[1];
+    BatchRequest batch = BatchedFirstPages.newBatch(analytics);
+    analytics.management().accounts().list().queue(batch, new JsonBatchCallback<Accounts>() {
+      @Override
+      public void onSuccess(Accounts accounts, HttpHeaders responseHeaders) {
+        accountsResult[0] = accounts;
+      }
+
+      @Override
+      public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+        System.err.println("Listing accounts failed: " + e.getCode() + " : " + e.getMessage());
+      }
+    });
+    analytics.management().segments().list().queue(batch, new JsonBatchCallback<Segments>() {
+      @Override
+      public void onSuccess(Segments segments, HttpHeaders responseHeaders) {
+        segmentsResult[0] = segments;
+      }
+
+      @Override
+      public void onFailure(GoogleJsonError e, HttpHeaders responseHeaders) {
+        System.err.println("Listing segments failed: " + e.getCode() + " : " + e.getMessage());
+      }
+    });
+    batch.execute();
+
     // Query accounts collection.
-    Accounts accounts = analytics.management().accounts().list().execute();
+    Accounts accounts = accountsResult[0] != null
+        ? accountsResult[0] : analytics.management().accounts().list().execute();
 
     if (accounts.getItems().isEmpty()) {
       System.err.println("No accounts found");
@@ -189,7 +222,8 @@ public class ManagementApiReferenceSample {
         }
       }
     }
-    Segments segments = analytics.management().segments().list().execute();
+    Segments segments = segmentsResult[0] != null
+        ? segmentsResult[0] : analytics.management().segments().list().execute();
     printSegments(segments);
   }
 
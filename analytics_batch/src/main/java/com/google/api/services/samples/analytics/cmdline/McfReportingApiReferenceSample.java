@@ -18,7 +18,6 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.googleapis.json.GoogleJsonResponseException;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
@@ -72,11 +71,20 @@ public class McfReportingApiReferenceSample {
   /** Global instance of the JSON factory. */
   private static final JsonFactory JSON_FACTORY = new JacksonFactory();
 
+  /** Paces the MCF requests, see {@link AnalyticsRequestGovernor}. */
+  private static final AnalyticsRequestGovernor GOVERNOR = AnalyticsRequestGovernor.fromSystemProperties();
+
   /**
    * TABLE ID of the format 'ga:xxx' where 'xxx' is your profile ID.
    */
   private static final String TABLE_ID = "_your_table_id_";
 
+  /**
+   * Root URL of the Analytics API for a local stand-in, whose requests are not authorized. Unset,
+   * the real API is used.
+   */
+  private static final String API_ROOT_URL = System.getProperty("regus.api.rootUrl");
+
   private static final String MCF_SEQUENCE_TYPE = "MCF_SEQUENCE";
   private static final String INTEGER_TYPE = "INTEGER";
 
@@ -90,7 +98,7 @@ public class McfReportingApiReferenceSample {
    */
   public static void main(String[] args) {
     try {
-      HTTP_TRANSPORT = GoogleNetHttpTransport.newTrustedTransport();
+      HTTP_TRANSPORT = AnalyticsHttpTransports.newTransport();
       DATA_STORE_FACTORY = new FileDataStoreFactory(DATA_STORE_DIR);
       Analytics analytics = initializeAnalytics();
 
@@ -99,6 +107,8 @@ public class McfReportingApiReferenceSample {
 
       McfData mcfInteractionData = executeInteractionQuery(analytics, TABLE_ID);
       printAllInfo(mcfInteractionData);
+      GOVERNOR.printSummary();
+      AnalyticsHttpTransports.printMeasurements();
 
     } catch (GoogleJsonResponseException e) {
       System.err.println("There was a service error: " + e.getDetails().getCode() + " : "
@@ -155,6 +165,10 @@ public class McfReportingApiReferenceSample {
    * @throws Exception if an issue occurs with OAuth2Native authorize.
    */
   private static Analytics initializeAnalytics() throws Exception {
+    if (API_ROOT_URL != null) {
+      return new Analytics.Builder(HTTP_TRANSPORT, JSON_FACTORY, null).setRootUrl(API_ROOT_URL)
+          .setApplicationName(APPLICATION_NAME).build();
+    }
     // Authorization.
     Credential credential = authorize();
 
@@ -173,13 +187,12 @@ public class McfReportingApiReferenceSample {
    * @throws IOException If an API error occurred.
    */
   private static McfData executePathQuery(Analytics analytics, String tableId) throws IOException {
-    return analytics.data().mcf().get(tableId, "2012-01-01", // Start date.
+    return GOVERNOR.execute(analytics.data().mcf().get(tableId, "2012-01-01", // Start date.
         "2012-03-31", // End date.
         "mcf:totalConversions") // Metrics.
         .setDimensions("mcf:sourcePath")
         .setSort("-mcf:totalConversions")
-        .setMaxResults(25)
-        .execute();
+        .setMaxResults(25));
   }
 
   /**
@@ -193,14 +206,13 @@ public class McfReportingApiReferenceSample {
    */
   private static McfData executeInteractionQuery(Analytics analytics, String tableId)
       throws IOException {
-    return analytics.data().mcf().get(tableId, "2012-01-01", // Start date.
+    return GOVERNOR.execute(analytics.data().mcf().get(tableId, "2012-01-01", // Start date.
         "2012-03-31", // End date.
         "mcf:totalConversions") // Metrics.
         .setDimensions("mcf:source")
         .setSort("-mcf:totalConversions")
         .setFilters("mcf:medium==organic")
-        .setMaxResults(25)
-        .execute();
+        .setMaxResults(25));
   }
 
   /**
@@ -0,0 +1,172 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+import com.google.api.services.analytics.model.GaData.ColumnHeaders;
+import org.apache.commons.lang3.time.DateUtils;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a query for several contiguous days with one multi-day query, {@code ga:date} added to its
+ * dimensions and its rows sorted by it, instead of one query per day. The rows are handed out again
+ * per day, in ascending day order, so each day is written exactly as if it had been queried alone and
+ * no day starts before the previous one is done.
+ * <p/>
+ * Days are grouped into spans of up to {@code maxDaysPerQuery}. When the first page of a span comes
+ * back sampled, or with more than {@code maxRowsPerQuery} rows, the span is split in half and each
+ * half is tried again, down to single days, which are ingested the usual way.
+ */
+abstract class MultiDayQueryPlanner {
+    private final int maxDaysPerQuery;
+    private final int maxRowsPerQuery;
+
+    MultiDayQueryPlanner(int maxDaysPerQuery, int maxRowsPerQuery) {
+        this.maxDaysPerQuery = Math.max(1, maxDaysPerQuery);
+        this.maxRowsPerQuery = maxRowsPerQuery;
+    }
+
+    /**
+     * Opens a reader over the query for the days {@code from} to {@code to}, both inclusive, with
+     * {@code ga:date} among its dimensions and sorted by it.
+     */
+    abstract GaPageReader openSpan(Date from, Date to);
+
+    /**
+     * Ingests a single day with its own query.
+     */
+    abstract void ingestDay(Date d) throws Exception;
+
+    /**
+     * Writes the rows of day {@code d} found on one page of a span. A day may get several of these.
+     */
+    abstract void writeDayPage(Date d, GaData dayPage) throws Exception;
+
+    /**
+     * Called once every row of day {@code d} in its span was written, also for a day without rows.
+     */
+    abstract void dayWritten(Date d) throws Exception;
+
+    /**
+     * Ingests {@code days}, which must be in ascending order. Only consecutive days are queried
+     * together.
+     */
+    void run(List<Date> days) throws Exception {
+        List<Date> span = new ArrayList<Date>();
+        for (Date d : days) {
+            if (!span.isEmpty() && (span.size() == maxDaysPerQuery
+                    || !DateUtils.isSameDay(DateUtils.addDays(span.get(span.size() - 1), 1), d))) {
+                ingestSpan(span);
+                span = new ArrayList<Date>();
+            }
+            span.add(d);
+        }
+        if (!span.isEmpty()) {
+            ingestSpan(span);
+        }
+    }
+
+    private void ingestSpan(List<Date> span) throws Exception {
+        if (span.size() == 1) {
+            ingestDay(span.get(0));
+            return;
+        }
+        GaPageReader pages = openSpan(span.get(0), span.get(span.size() - 1));
+        try {
+            GaData gaData = pages.next();
+            if (gaData != null && !fitsOneQuery(gaData)) {
+                System.out.println("Splitting the query for " + span.size() + " days starting " + span.get(0)
+                        + (Boolean.TRUE.equals(gaData.getContainsSampledData()) ? ", it is sampled" : ", it has " + gaData.getTotalResults() + " rows"));
+                pages.close();
+                int half = span.size() / 2;
+                ingestSpan(span.subList(0, half));
+                ingestSpan(span.subList(half, span.size()));
+                return;
+            }
+            Map<String, Integer> dayIndexes = new HashMap<String, Integer>();
+            SimpleDateFormat gaDate = new SimpleDateFormat("yyyyMMdd");
+            for (int i = 0; i < span.size(); i++) {
+                dayIndexes.put(gaDate.format(span.get(i)), i);
+            }
+            int next = 0;
+            for (; gaData != null; gaData = pages.next()) {
+                next = writePage(span, dayIndexes, next, gaData);
+            }
+            for (; next < span.size(); next++) {
+                dayWritten(span.get(next));
+            }
+        } finally {
+            pages.close();
+        }
+    }
+
+    /**
+     * Writes a page of a span, per day.
+     *
+     * @param next the index of the first day in the span that is not completely written yet.
+     * @return the index of the first day that is not completely written after this page.
+     */
+    private int writePage(List<Date> span, Map<String, Integer> dayIndexes, int next, GaData gaData) throws Exception {
+        if (gaData.getRows() == null) {
+            return next;
+        }
+        int dateColumn = dateColumn(gaData.getColumnHeaders());
+        int current = -1;
+        List<List<String>> dayRows = new ArrayList<List<String>>();
+        for (List<String> rowValues : gaData.getRows()) {
+            Integer index = dayIndexes.get(rowValues.get(dateColumn));
+            if (index == null) {
+                throw new IllegalStateException("Row for a date outside the queried days: " + rowValues);
+            }
+            if (index != current) {
+                if (index < next) {
+                    throw new IllegalStateException("Rows are not sorted by ga:date: " + rowValues);
+                }
+                if (current >= 0) {
+                    writeDayPage(span.get(current), dayPage(gaData, dayRows));
+                    dayRows = new ArrayList<List<String>>();
+                }
+                // every day before this row's day is complete now
+                for (; next < index; next++) {
+                    dayWritten(span.get(next));
+                }
+                current = index;
+            }
+            dayRows.add(rowValues);
+        }
+        if (current >= 0) {
+            writeDayPage(span.get(current), dayPage(gaData, dayRows));
+        }
+        return next;
+    }
+
+    private boolean fitsOneQuery(GaData gaData) {
+        return !Boolean.TRUE.equals(gaData.getContainsSampledData()) && gaData.getTotalResults() <= maxRowsPerQuery;
+    }
+
+    /**
+     * Returns the part of a span page holding the rows of one day. Only the fields the row writers
+     * look at are carried over.
+     */
+    private static GaData dayPage(GaData gaData, List<List<String>> dayRows) {
+        return new GaData()
+                .setColumnHeaders(gaData.getColumnHeaders())
+                .setContainsSampledData(gaData.getContainsSampledData())
+                .setQuery(gaData.getQuery())
+                .setTotalResults(dayRows.size())
+                .setRows(dayRows);
+    }
+
+    private static int dateColumn(List<ColumnHeaders> columnHeaders) {
+        for (int i = 0; i < columnHeaders.size(); i++) {
+            if ("ga:date".equals(columnHeaders.get(i).getName())) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Multi-day query response has no ga:date column");
+    }
+}
@@ -0,0 +1,122 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Splits a {@code ga:pagePath} into the stored page path, the product and the centre lookup key.
+ * <p/>
+ * It gives the same results as the former chain of {@code split("\\?")}, {@code split("regus.com")}
+ * (where the dot matches any character) and {@code split("locations/")}, but scans the path once by
+ * index and only allocates the three result strings. Paths the old code failed on, such as
+ * {@code /locations/office} without a centre, give an empty centre lookup key instead.
+ * <p/>
+ * Results are remembered for the {@code memoSize} most recently used paths, since the same few
+ * thousand paths come back on every page of every day.
+ */
+class PagePathNormalizer {
+    private static final String LOCATIONS = "locations/";
+
+    /**
+     * The parts of one page path.
+     */
+    static final class PagePath {
+        final String strippedPagePath;
+        final String product;
+        final String centerLookUp;
+
+        PagePath(String strippedPagePath, String product, String centerLookUp) {
+            this.strippedPagePath = strippedPagePath;
+            this.product = product;
+            this.centerLookUp = centerLookUp;
+        }
+    }
+
+    private final Map<String, PagePath> memo;
+
+    PagePathNormalizer(final int memoSize) {
+        this.memo = new LinkedHashMap<String, PagePath>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PagePath> eldest) {
+                return size() > memoSize;
+            }
+        };
+    }
+
+    PagePath normalize(String pagePath) {
+        PagePath normalized;
+        synchronized (memo) {
+            normalized = memo.get(pagePath);
+        }
+        if (normalized == null) {
+            normalized = parse(pagePath);
+            synchronized (memo) {
+                memo.put(pagePath, normalized);
+            }
+        }
+        return normalized;
+    }
+
+    static PagePath parse(String pagePath) {
+        // everything after the URL parameters is removed
+        int end = pagePath.indexOf('?');
+        if (end < 0) {
+            end = pagePath.length();
+        }
+
+        // the path is the last non-empty part around "regus.com", which drops a mobile site's host
+        int start = 0;
+        int lastStart = 0;
+        int lastEnd = 0;
+        int i = 0;
+        while (i + 9 <= end) {
+            if (isRegusCom(pagePath, i)) {
+                if (i > start) {
+                    lastStart = start;
+                    lastEnd = i;
+                }
+                start = i + 9;
+                i = start;
+            } else {
+                i++;
+            }
+        }
+        if (end > start) {
+            lastStart = start;
+            lastEnd = end;
+        }
+        String strippedPagePath = pagePath.substring(lastStart, lastEnd);
+
+        // the product and centre follow the first "locations/", up to the next one if any
+        int locations = strippedPagePath.indexOf(LOCATIONS);
+        if (locations < 0) {
+            return new PagePath(strippedPagePath, "", "");
+        }
+        int segmentStart = locations + LOCATIONS.length();
+        int rest = segmentStart;
+        while (strippedPagePath.startsWith(LOCATIONS, rest)) {
+            rest += LOCATIONS.length();
+        }
+        if (rest == strippedPagePath.length()) {
+            // nothing but "locations/" after the first one
+            return new PagePath(strippedPagePath, "", "");
+        }
+        int segmentEnd = strippedPagePath.indexOf(LOCATIONS, segmentStart);
+        if (segmentEnd < 0) {
+            segmentEnd = strippedPagePath.length();
+        }
+        int slash = strippedPagePath.indexOf('/', segmentStart);
+        if (slash < 0 || slash >= segmentEnd) {
+            return new PagePath(strippedPagePath, strippedPagePath.substring(segmentStart, segmentEnd), "");
+        }
+        return new PagePath(strippedPagePath, strippedPagePath.substring(segmentStart, slash),
+                strippedPagePath.substring(slash + 1, segmentEnd));
+    }
+
+    /**
+     * Matches the regular expression {@code regus.com} at {@code i}.
+     */
+    private static boolean isRegusCom(String path, int i) {
+        return path.startsWith("regus", i) && path.startsWith("com", i + 6);
+    }
+}
@@ -0,0 +1,112 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Fetches the first page, then uses its {@code totalResults} and {@code itemsPerPage} to request the
+ * remaining pages concurrently instead of following {@code nextLink} one page at a time. Pages are
+ * still handed out in start index order.
+ * <p/>
+ * At most {@code window} pages are requested or waiting to be read at any time, which caps both
+ * the number of API calls in flight for this query and the pages held in memory. The executor is
+ * shared by every reader, so its size caps the calls in flight across all queries.
+ * <p/>
+ * If the last page still carries a {@code nextLink} (the totals grew while paging, which can happen
+ * for today's data), the remaining pages are followed one at a time like before.
+ */
+class ParallelOffsetGaPageReader extends GaPageReader {
+    private final GaPageSource source;
+    private final int firstStartIndex;
+    private final ExecutorService executor;
+    private final int window;
+    private final LinkedList<Future<GaData>> pending = new LinkedList<Future<GaData>>();
+
+    private GaData last;
+    private int nextStartIndex;
+    private int pageSize;
+    private int totalResults;
+    private boolean done;
+
+    ParallelOffsetGaPageReader(GaPageSource source, int firstStartIndex, ExecutorService executor, int window) {
+        this.source = source;
+        this.firstStartIndex = firstStartIndex;
+        this.executor = executor;
+        this.window = Math.max(1, window);
+    }
+
+    @Override
+    GaData next() throws IOException {
+        if (done) {
+            return null;
+        }
+        if (last == null) {
+            last = source.fetch(firstStartIndex);
+            if (hasNextPage(last)) {
+                Integer itemsPerPage = last.getItemsPerPage();
+                pageSize = itemsPerPage != null && itemsPerPage > 0 ? itemsPerPage : last.getQuery().getMaxResults();
+                totalResults = last.getTotalResults();
+                nextStartIndex = last.getQuery().getStartIndex() + pageSize;
+                fillWindow();
+            } else {
+                done = true;
+            }
+            return last;
+        }
+        if (pending.isEmpty()) {
+            if (!hasNextPage(last)) {
+                done = true;
+                return null;
+            }
+            last = source.fetch(nextStartIndex(last));
+            return last;
+        }
+        Future<GaData> page = pending.removeFirst();
+        fillWindow();
+        last = await(page);
+        return last;
+    }
+
+    @Override
+    void close() {
+        done = true;
+        for (Future<GaData> page : pending) {
+            page.cancel(true);
+        }
+        pending.clear();
+    }
+
+    private void fillWindow() {
+        while (pending.size() < window && nextStartIndex <= totalResults) {
+            final int startIndex = nextStartIndex;
+            pending.addLast(executor.submit(new Callable<GaData>() {
+                public GaData call() throws IOException {
+                    return source.fetch(startIndex);
+                }
+            }));
+            nextStartIndex += pageSize;
+        }
+    }
+
+    private GaData await(Future<GaData> page) throws IOException {
+        try {
+            return page.get();
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the next page");
+        } catch (ExecutionException e) {
+            close();
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Fetching the next page failed", e.getCause());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the following pages on a background thread while the caller is still writing the current
+ * one, so API time and database time overlap instead of adding up.
+ * <p/>
+ * At most {@code bufferedPages} fetched pages wait in the buffer; once it is full the fetcher blocks
+ * until the caller takes a page. Memory therefore stays at {@code bufferedPages} + 2 pages: the
+ * buffered ones, the one being fetched and the one being written.
+ */
+class PipelinedGaPageReader extends GaPageReader {
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger();
+
+    /**
+     * Queued after the last page.
+     */
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object> buffer;
+    private final Thread fetcher;
+    private boolean done;
+
+    PipelinedGaPageReader(final GaPageSource source, final int firstStartIndex, int bufferedPages) {
+        this.buffer = new ArrayBlockingQueue<Object>(Math.max(1, bufferedPages));
+        this.fetcher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    int startIndex = firstStartIndex;
+                    GaData gaData;
+                    do {
+                        gaData = source.fetch(startIndex);
+                        buffer.put(gaData);
+                        startIndex = nextStartIndex(gaData);
+                    } while (hasNextPage(gaData));
+                    buffer.put(END);
+                } catch (InterruptedException e) {
+                    // closed by the reader, nobody is waiting for more pages
+                } catch (Throwable t) {
+                    // an Error too, or the reader would wait for a page forever
+                    try {
+                        buffer.put(t);
+                    } catch (InterruptedException ignored) {
+                        // closed by the reader
+                    }
+                }
+            }
+        }, "page-fetcher-" + THREAD_COUNT.incrementAndGet());
+        this.fetcher.setDaemon(true);
+        this.fetcher.start();
+    }
+
+    @Override
+    GaData next() throws IOException {
+        if (done) {
+            return null;
+        }
+        Object next;
+        try {
+            next = buffer.take();
+        } catch (InterruptedException e) {
+            close();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the next page");
+        }
+        if (next == END) {
+            done = true;
+            return null;
+        }
+        if (next instanceof Throwable) {
+            done = true;
+            if (next instanceof IOException) {
+                throw (IOException) next;
+            }
+            if (next instanceof Error) {
+                throw (Error) next;
+            }
+            throw new IOException("Fetching the next page failed", (Throwable) next);
+        }
+        return (GaData) next;
+    }
+
+    @Override
+    void close() {
+        done = true;
+        fetcher.interrupt();
+        buffer.clear();
+    }
+}
@@ -0,0 +1,161 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.Key;
+import com.google.api.services.analytics.Analytics;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A Core Reporting query that is run for every day of the backfill: its metrics, dimensions and
+ * filters, the collection its rows are written to and the columns that identify a row within a day.
+ * <p/>
+ * Reports besides the built-in ones are read from a JSON file, see {@link #load}, and ingested by
+ * {@link ReportEngine}. The name also keys the report's checkpoints in {@code ingest_state}. The
+ * class is public only because the JSON parser instantiates it.
+ */
+public class ReportDefinition extends GenericJson {
+    private static final int DEFAULT_MAX_RESULTS = 5000;
+
+    @Key
+    private String name;
+    @Key
+    private String metrics;
+    @Key
+    private String dimensions;
+    @Key
+    private String filters;
+    @Key
+    private String collection;
+    @Key
+    private List<String> keyFields;
+    @Key
+    private Integer maxResults;
+
+    /**
+     * The contents of a report definitions file: {@code {"reports": [{"name": ..., ...}, ...]}}.
+     */
+    public static class Config extends GenericJson {
+        @Key
+        private List<ReportDefinition> reports;
+    }
+
+    public ReportDefinition() {
+    }
+
+    ReportDefinition(String name, String metrics, String dimensions, String filters, String collection) {
+        this.name = name;
+        this.metrics = metrics;
+        this.dimensions = dimensions;
+        this.filters = filters;
+        this.collection = collection;
+    }
+
+    /**
+     * Reads the report definitions of a JSON file.
+     *
+     * @throws IllegalArgumentException if a definition lacks its name, metrics or collection.
+     */
+    static List<ReportDefinition> load(File file, JsonFactory jsonFactory) throws IOException {
+        InputStream in = new FileInputStream(file);
+        Config config;
+        try {
+            config = jsonFactory.fromInputStream(in, Config.class);
+        } finally {
+            in.close();
+        }
+        if (config.reports == null) {
+            return Collections.emptyList();
+        }
+        for (ReportDefinition report : config.reports) {
+            if (report.name == null || report.metrics == null || report.collection == null) {
+                throw new IllegalArgumentException("Report definition in " + file
+                        + " needs a name, metrics and collection: " + report);
+            }
+        }
+        return config.reports;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    String getCollection() {
+        return collection;
+    }
+
+    /**
+     * Returns the columns whose values identify a row within a day, by default every dimension.
+     */
+    List<String> getKeyFields() {
+        if (keyFields != null && !keyFields.isEmpty()) {
+            return keyFields;
+        }
+        if (dimensions == null) {
+            return Collections.emptyList();
+        }
+        List<String> all = new ArrayList<String>();
+        Collections.addAll(all, dimensions.split(","));
+        return all;
+    }
+
+    /**
+     * Returns the report's filters ANDed with {@code extraFilter}, which may be {@code null}.
+     */
+    String filters(String extraFilter) {
+        if (extraFilter == null) {
+            return filters;
+        }
+        return filters == null ? extraFilter : filters + ";" + extraFilter;
+    }
+
+    /**
+     * Builds the query for one page of the report on day {@code d}.
+     *
+     * @param startIndex  the start index of the page, 0 for the first one.
+     * @param extraFilter a filter ANDed with the report's own, or {@code null} for none.
+     */
+    Analytics.Data.Ga.Get newQuery(Analytics analytics, String tableId, Date d, int startIndex, String extraFilter)
+            throws IOException {
+        return newQuery(analytics, tableId, d, d, startIndex, extraFilter, false);
+    }
+
+    /**
+     * Builds the query for one page of the report on the days {@code from} to {@code to}, with
+     * {@code ga:date} added to the dimensions and the rows sorted by it, see
+     * {@link MultiDayQueryPlanner}.
+     */
+    Analytics.Data.Ga.Get newMultiDayQuery(Analytics analytics, String tableId, Date from, Date to, int startIndex)
+            throws IOException {
+        return newQuery(analytics, tableId, from, to, startIndex, null, true);
+    }
+
+    private Analytics.Data.Ga.Get newQuery(Analytics analytics, String tableId, Date from, Date to, int startIndex,
+                                           String extraFilter, boolean byDate) throws IOException {
+        SimpleDateFormat day = new SimpleDateFormat("yyyy-MM-dd");
+        Analytics.Data.Ga.Get get = analytics.data().ga().get(tableId, day.format(from), day.format(to), metrics)
+                .setMaxResults(maxResults == null ? DEFAULT_MAX_RESULTS : maxResults);
+        if (byDate) {
+            get.setDimensions(dimensions == null ? "ga:date" : dimensions + ",ga:date").setSort("ga:date");
+        } else if (dimensions != null) {
+            get.setDimensions(dimensions);
+        }
+        String allFilters = filters(extraFilter);
+        if (allFilters != null) {
+            get.setFilters(allFilters);
+        }
+        if (startIndex > 0) {
+            get.setStartIndex(startIndex);
+        }
+        return get;
+    }
+}
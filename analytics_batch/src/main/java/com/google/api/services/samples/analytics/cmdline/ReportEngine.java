@@ -0,0 +1,143 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+import com.mongodb.DB;
+import com.mongodb.WriteConcern;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ingests the {@link ReportDefinition}s of a day side by side, each with the same checkpointing,
+ * paging and batched writing as the built-in reports, to the same sinks. The built-in reports are
+ * definitions too, but keep their own ingestion, which the caller passes to {@link #ingest}.
+ * <p/>
+ * Up to {@code parallelism} reports of a day run at once, next to the built-in work the caller
+ * passes to {@link #ingest}. Their page requests go through the same request limit as every other
+ * query of the run, so more reports share the quota rather than adding to it.
+ */
+abstract class ReportEngine {
+    private final DB db;
+    private final DocumentSinks sinks;
+    private final List<ReportDefinition> reports;
+    private final IngestCheckpointStore checkpoints;
+    private final IngestMetrics metrics;
+    private final int batchSize;
+    private final long flushIntervalMillis;
+    private final WriteConcern writeConcern;
+    private final ExecutorService pool;
+
+    ReportEngine(DB db, DocumentSinks sinks, List<ReportDefinition> reports, IngestCheckpointStore checkpoints,
+                 IngestMetrics metrics, int parallelism, int batchSize, long flushIntervalMillis, WriteConcern writeConcern) {
+        this.db = db;
+        this.sinks = sinks;
+        this.reports = reports;
+        this.checkpoints = checkpoints;
+        this.metrics = metrics;
+        this.batchSize = batchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.writeConcern = writeConcern;
+        this.pool = reports.isEmpty() ? null : Executors.newFixedThreadPool(Math.max(1, parallelism), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "report-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Opens a reader over the pages of {@code report} for day {@code d}.
+     *
+     * @param startIndex the start index of the first page to read, 0 for the first page.
+     */
+    abstract GaPageReader openPages(ReportDefinition report, Date d, int startIndex);
+
+    /**
+     * Ingests every report for day {@code d} while {@code alongside} runs on the calling thread, and
+     * returns once all of them are done.
+     *
+     * @param alongside other work for the day, or {@code null} for none.
+     */
+    void ingest(final Date d, Callable<Void> alongside) throws Exception {
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (final ReportDefinition report : reports) {
+            futures.add(pool.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    ingestReport(report, d);
+                    return null;
+                }
+            }));
+        }
+        try {
+            if (alongside != null) {
+                alongside.call();
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        } finally {
+            for (Future<Void> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void ingestReport(ReportDefinition report, Date d) throws Exception {
+        String query = report.getName();
+        if (checkpoints.skipDay(query, d)) {
+            System.out.println("Report " + query + " already ingested for date: " + d);
+            return;
+        }
+        IngestMetrics.Stages stages = metrics.stages(query, d);
+        DocumentSink writer = sinks.open(db.getCollection(report.getCollection()), "_id", batchSize,
+                flushIntervalMillis, writeConcern, stages.write);
+        ReportRows rows = new ReportRows(report, writer, d, stages);
+        GaPageReader pages = openPages(report, d, checkpoints.resumeStartIndex(query, d, report.filters(null)));
+        try {
+            GaData gaData;
+            while ((gaData = pages.next()) != null) {
+                if (rows.startPage(gaData) && gaData.getRows() != null) {
+                    for (List<String> rowValues : gaData.getRows()) {
+                        rows.row(rowValues);
+                    }
+                }
+                writer.flush();
+                // a page after a failed one must not move the watermark past it either
+                if (writer.getFailedCount() == 0) {
+                    checkpoints.pageWritten(query, d, report.filters(null), gaData);
+                }
+            }
+        } finally {
+            pages.close();
+            writer.close();
+        }
+        if (writer.getFailedCount() == 0) {
+            checkpoints.dayComplete(query, d);
+        }
+        System.out.println("Wrote " + writer.getWrittenCount() + " rows of report " + query + " for date: " + d
+                + (writer.getFailedCount() > 0 ? " (" + writer.getFailedCount() + " failed)" : ""));
+    }
+
+    void close() {
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+import com.google.api.services.analytics.model.GaData.ColumnHeaders;
+import com.mongodb.BasicDBObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Writes the rows of a {@link ReportDefinition} for one day, one document per row. Each column is
+ * stored under its name without the {@code ga:} prefix, next to the {@code date}. The {@code _id}
+ * is derived from the report's name, the date and the report's key fields, so writing a day again
+ * replaces its documents, and reports sharing a collection and key fields do not replace each
+ * other's. Each row is timed as a transform in {@code stages}.
+ */
+class ReportRows implements GaRowSink {
+    private final ReportDefinition report;
+    private final DocumentSink writer;
+    private final IngestMetrics.Stages stages;
+    private final Date day;
+    private final String date;
+    private String[] fields;
+    private int[] keyColumns;
+
+    ReportRows(ReportDefinition report, DocumentSink writer, Date d, IngestMetrics.Stages stages) {
+        this.report = report;
+        this.writer = writer;
+        this.stages = stages;
+        this.day = d;
+        this.date = new SimpleDateFormat("yyyy/MM/dd").format(d);
+    }
+
+    public boolean startPage(GaData gaData) {
+        if (gaData.getTotalResults() == 0) {
+            System.out.println("No data for report " + report.getName());
+            return false;
+        }
+        if (gaData.getContainsSampledData()) {
+            System.out.println("Excluding report " + report.getName() + " data since it has sample data");
+            return false;
+        }
+        List<ColumnHeaders> columnHeaders = gaData.getColumnHeaders();
+        fields = new String[columnHeaders.size()];
+        for (int i = 0; i < fields.length; i++) {
+            String name = columnHeaders.get(i).getName();
+            fields[i] = name.startsWith("ga:") ? name.substring(3) : name;
+        }
+        List<String> keyFields = report.getKeyFields();
+        keyColumns = new int[keyFields.size()];
+        for (int k = 0; k < keyColumns.length; k++) {
+            keyColumns[k] = -1;
+            for (int i = 0; i < columnHeaders.size(); i++) {
+                if (columnHeaders.get(i).getName().equals(keyFields.get(k))) {
+                    keyColumns[k] = i;
+                }
+            }
+            if (keyColumns[k] < 0) {
+                throw new IllegalStateException("Report " + report.getName() + " has no " + keyFields.get(k) + " column");
+            }
+        }
+        return true;
+    }
+
+    public void row(List<String> rowValues) {
+        long start = System.nanoTime();
+        BasicDBObject document = new BasicDBObject();
+        for (int i = 0; i < fields.length; i++) {
+            document.put(fields[i], rowValues.get(i));
+        }
+        document.put("date", date);
+        document.put("_id", documentId(rowValues));
+        stages.transform.record(start, 1);
+        writer.add(day, document);
+    }
+
+    private String documentId(List<String> rowValues) {
+        String[] parts = new String[keyColumns.length + 2];
+        parts[0] = report.getName();
+        parts[1] = date;
+        for (int k = 0; k < keyColumns.length; k++) {
+            parts[k + 2] = rowValues.get(keyColumns[k]);
+        }
+        return Sha1.ofParts(parts);
+    }
+}
@@ -0,0 +1,147 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+
+import java.io.IOException;
+import java.util.LinkedList;
+
+/**
+ * Reads a day's query as one stream of pages, splitting it into {@code ga:hour} slices when the API
+ * answers with sampled data.
+ * <p/>
+ * The whole day is tried first. If its first page is sampled, the day is re-issued as two slices of
+ * 12 hours, and every slice that still comes back sampled is halved again, down to single hours.
+ * The pages of all unsampled slices are returned one slice after another, in hour order. A single
+ * hour that is still sampled is returned as it is, sampled, and counted in
+ * {@link #getSampledHours()}, so the caller can report the hours it skips.
+ * <p/>
+ * Slicing only adds a filter on {@code ga:hour}; it is not added to the dimensions. A row whose
+ * dimensions were seen in more than one hour therefore comes back once per slice, each with the
+ * metrics of its own hours, which add up to what an unsampled whole-day row would have carried.
+ */
+abstract class SampledQuerySplitter extends GaPageReader {
+    private static final int FIRST_HOUR = 0;
+    private static final int LAST_HOUR = 23;
+
+    /**
+     * Hour ranges still to read, as {first hour, last hour}. {@code null} is the unsliced day.
+     */
+    private final LinkedList<int[]> pending = new LinkedList<int[]>();
+    private GaPageReader current;
+    private String currentHourFilter;
+    private int sampledHours;
+
+    SampledQuerySplitter() {
+        pending.add(null);
+    }
+
+    /**
+     * Opens a reader over the day's query with the given filter added, or unchanged if the filter is
+     * {@code null}.
+     */
+    abstract GaPageReader openSlice(String hourFilter);
+
+    /**
+     * Called when a query came back sampled and is about to be split.
+     */
+    void onSampled(String hourFilter) {
+        System.out.println("Sampled data for " + (hourFilter == null ? "the whole day" : hourFilter)
+                + ", splitting into smaller hour ranges");
+    }
+
+    /**
+     * Called when a single hour came back sampled, whose pages are returned as they are.
+     */
+    void onSampledHour(String hourFilter) {
+        System.out.println("Sampled data even for " + hourFilter + ", which cannot be split further");
+    }
+
+    /**
+     * Returns the hour filter of the slice the last page came from, {@code null} for the unsliced day.
+     */
+    String getHourFilter() {
+        return currentHourFilter;
+    }
+
+    /**
+     * Returns the number of single hours that came back sampled so far.
+     */
+    int getSampledHours() {
+        return sampledHours;
+    }
+
+    @Override
+    GaData next() throws IOException {
+        while (true) {
+            if (current != null) {
+                GaData gaData = current.next();
+                if (gaData != null) {
+                    return gaData;
+                }
+                current.close();
+                current = null;
+            }
+            if (pending.isEmpty()) {
+                return null;
+            }
+
+            int[] hours = pending.removeFirst();
+            String hourFilter = hours == null ? null : hourFilter(hours[0], hours[1]);
+            GaPageReader slice = openSlice(hourFilter);
+            GaData first;
+            try {
+                first = slice.next();
+            } catch (IOException e) {
+                slice.close();
+                throw e;
+            }
+            if (first != null && Boolean.TRUE.equals(first.getContainsSampledData())
+                    && (hours == null || hours[0] < hours[1])) {
+                slice.close();
+                onSampled(hourFilter);
+                int from = hours == null ? FIRST_HOUR : hours[0];
+                int to = hours == null ? LAST_HOUR : hours[1];
+                int middle = (from + to) / 2;
+                pending.addFirst(new int[]{middle + 1, to});
+                pending.addFirst(new int[]{from, middle});
+                continue;
+            }
+            if (first != null && Boolean.TRUE.equals(first.getContainsSampledData())) {
+                sampledHours++;
+                onSampledHour(hourFilter);
+            }
+            current = slice;
+            currentHourFilter = hourFilter;
+            if (first != null) {
+                return first;
+            }
+        }
+    }
+
+    @Override
+    void close() {
+        if (current != null) {
+            current.close();
+            current = null;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Returns a filter matching the hours {@code from} to {@code to}, both inclusive. Dimension
+     * filters have no range operators, so the hours are listed in a regular expression.
+     */
+    static String hourFilter(int from, int to) {
+        StringBuilder filter = new StringBuilder("ga:hour=~^(");
+        for (int hour = from; hour <= to; hour++) {
+            if (hour > from) {
+                filter.append('|');
+            }
+            if (hour < 10) {
+                filter.append('0');
+            }
+            filter.append(hour);
+        }
+        return filter.append(")$").toString();
+    }
+}
@@ -0,0 +1,35 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+
+import java.io.IOException;
+
+/**
+ * Fetches each page on the calling thread when it is asked for.
+ */
+class SerialGaPageReader extends GaPageReader {
+    private final GaPageSource source;
+    private final int firstStartIndex;
+    private GaData last;
+    private boolean done;
+
+    SerialGaPageReader(GaPageSource source, int firstStartIndex) {
+        this.source = source;
+        this.firstStartIndex = firstStartIndex;
+    }
+
+    @Override
+    GaData next() throws IOException {
+        if (done) {
+            return null;
+        }
+        last = source.fetch(last == null ? firstStartIndex : nextStartIndex(last));
+        done = !hasNextPage(last);
+        return last;
+    }
+
+    @Override
+    void close() {
+        done = true;
+    }
+}
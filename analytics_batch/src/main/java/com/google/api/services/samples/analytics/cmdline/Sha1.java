@@ -0,0 +1,61 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-1 digests in hex, the keys of {@link GaResponseCache} entries and the deterministic
+ * {@code _id}s of written documents.
+ */
+class Sha1 {
+
+    private Sha1() {
+    }
+
+    /**
+     * Returns the digest of the UTF-8 bytes of {@code text}.
+     */
+    static String of(String text) {
+        MessageDigest sha1 = newDigest();
+        sha1.update(utf8(text));
+        return hex(sha1.digest());
+    }
+
+    /**
+     * Returns the digest of {@code parts}, each as its UTF-8 bytes followed by a 0 byte, so that no
+     * two different lists of parts run together into the same bytes.
+     */
+    static String ofParts(String... parts) {
+        MessageDigest sha1 = newDigest();
+        for (String part : parts) {
+            sha1.update(utf8(part));
+            sha1.update((byte) 0);
+        }
+        return hex(sha1.digest());
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] utf8(String text) {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return hex.toString();
+    }
+}
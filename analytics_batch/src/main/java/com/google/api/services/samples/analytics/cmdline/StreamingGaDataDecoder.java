@@ -0,0 +1,118 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.api.services.analytics.model.GaData;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes a Core Reporting response straight from the HTTP stream, handing each row to a
+ * {@link GaRowSink} as soon as it is parsed instead of building the page's whole
+ * {@code List<List<String>>} first. Memory per page therefore stays at about one row, whatever
+ * {@code max-results} is.
+ * <p/>
+ * Everything except {@code rows} is small and parsed into a {@link GaData} the usual way, which is
+ * what the sink gets in {@link GaRowSink#startPage} and what {@link #decode} returns, without rows.
+ * The API puts {@code rows} last; should a response ever list rows before {@code columnHeaders} or
+ * {@code containsSampledData}, those rows are held back until the end of the response.
+ */
+class StreamingGaDataDecoder {
+    private final com.fasterxml.jackson.core.JsonFactory jackson = new com.fasterxml.jackson.core.JsonFactory();
+    private final com.google.api.client.json.JsonFactory jsonFactory;
+
+    StreamingGaDataDecoder(com.google.api.client.json.JsonFactory jsonFactory) {
+        this.jsonFactory = jsonFactory;
+    }
+
+    /**
+     * Reads a response from {@code in}, which the caller closes.
+     *
+     * @return the page without its rows.
+     */
+    GaData decode(InputStream in, GaRowSink sink) throws IOException {
+        JsonParser parser = jackson.createParser(in);
+        if (parser.nextToken() != JsonToken.START_OBJECT) {
+            throw new IOException("Expected a JSON object, got " + parser.getCurrentToken());
+        }
+        Map<String, String> fields = new LinkedHashMap<String, String>();
+        List<List<String>> heldBackRows = null;
+        boolean rowsStreamed = false;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            if (!"rows".equals(name)) {
+                fields.put(name, copyValue(parser));
+            } else if (fields.containsKey("columnHeaders") && fields.containsKey("containsSampledData")) {
+                if (sink.startPage(header(fields))) {
+                    streamRows(parser, sink);
+                } else {
+                    parser.skipChildren();
+                }
+                rowsStreamed = true;
+            } else {
+                heldBackRows = readRows(parser);
+            }
+        }
+
+        GaData gaData = header(fields);
+        if (!rowsStreamed && sink.startPage(gaData) && heldBackRows != null) {
+            for (List<String> rowValues : heldBackRows) {
+                sink.row(rowValues);
+            }
+        }
+        return gaData;
+    }
+
+    private void streamRows(JsonParser parser, GaRowSink sink) throws IOException {
+        List<String> rowValues = new ArrayList<String>();
+        while (parser.nextToken() == JsonToken.START_ARRAY) {
+            rowValues.clear();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                rowValues.add(parser.getText());
+            }
+            sink.row(rowValues);
+        }
+    }
+
+    private List<List<String>> readRows(JsonParser parser) throws IOException {
+        List<List<String>> rows = new ArrayList<List<String>>();
+        while (parser.nextToken() == JsonToken.START_ARRAY) {
+            List<String> rowValues = new ArrayList<String>();
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                rowValues.add(parser.getText());
+            }
+            rows.add(rowValues);
+        }
+        return rows;
+    }
+
+    private String copyValue(JsonParser parser) throws IOException {
+        StringWriter json = new StringWriter();
+        JsonGenerator generator = jackson.createGenerator(json);
+        generator.copyCurrentStructure(parser);
+        generator.close();
+        return json.toString();
+    }
+
+    private GaData header(Map<String, String> fields) throws IOException {
+        StringWriter json = new StringWriter();
+        JsonGenerator generator = jackson.createGenerator(json);
+        generator.writeStartObject();
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            generator.writeFieldName(field.getKey());
+            generator.writeRawValue(field.getValue());
+        }
+        generator.writeEndObject();
+        generator.close();
+        return jsonFactory.fromString(json.toString(), GaData.class);
+    }
+}
@@ -0,0 +1,99 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.mongodb.BasicDBObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sums the metrics of one day's visit attributes per centre, product, source and medium while the
+ * rows are ingested, so that daily figures are read from one {@code visit_attrs_daily} document per
+ * group instead of being aggregated from the raw rows. Each group sums the pageviews and session
+ * duration in seconds. It does not count rows, as a day read in {@code ga:hour} slices has a row
+ * per slice for the same dimensions.
+ * <p/>
+ * The sums only hold the whole day once every row of it went through {@link #add}. A day resumed
+ * part way, or with sampled pages left out, is therefore {@link #markPartial() marked partial} and
+ * not written.
+ */
+class VisitAttributesDailyRollup {
+    private final Date day;
+    private final String date;
+    // centerId, product, source and medium joined -> their sums
+    private final Map<String, Group> groups = new HashMap<String, Group>();
+    private boolean partial;
+
+    private static class Group {
+        final String centerId;
+        final String product;
+        final String source;
+        final String medium;
+        long pageviews;
+        double sessionDuration;
+
+        Group(String centerId, String product, String source, String medium) {
+            this.centerId = centerId;
+            this.product = product;
+            this.source = source;
+            this.medium = medium;
+        }
+    }
+
+    VisitAttributesDailyRollup(Date d) {
+        this.day = d;
+        this.date = new SimpleDateFormat("yyyy/MM/dd").format(d);
+    }
+
+    void add(String centerId, String product, String source, String medium, long pageviews, double sessionDuration) {
+        String key = centerId + '\0' + product + '\0' + source + '\0' + medium;
+        Group group = groups.get(key);
+        if (group == null) {
+            group = new Group(centerId, product, source, medium);
+            groups.put(key, group);
+        }
+        group.pageviews += pageviews;
+        group.sessionDuration += sessionDuration;
+    }
+
+    /**
+     * Records that some rows of the day will not be added, because an earlier run wrote them or
+     * because they were left out as sampled.
+     */
+    void markPartial() {
+        partial = true;
+    }
+
+    boolean isPartial() {
+        return partial;
+    }
+
+    Date getDay() {
+        return day;
+    }
+
+    /**
+     * Adds a document per group to {@code sink}, with an {@code _id} derived from the date and the
+     * group, so writing a day again replaces its documents.
+     *
+     * @param ingestRun the marker that tells the documents of this run from those of earlier ones.
+     * @return the number of documents.
+     */
+    int writeTo(DocumentSink sink, String ingestRun) {
+        for (Group group : groups.values()) {
+            BasicDBObject document = new BasicDBObject("_id",
+                    Sha1.ofParts(date, group.centerId, group.product, group.source, group.medium));
+            document.put("date", date);
+            document.put("centerId", group.centerId);
+            document.put("product", group.product);
+            document.put("source", group.source);
+            document.put("medium", group.medium);
+            document.put("pageviews", group.pageviews);
+            document.put("sessionDuration", group.sessionDuration);
+            document.put("ingestRun", ingestRun);
+            sink.add(day, document);
+        }
+        return groups.size();
+    }
+}
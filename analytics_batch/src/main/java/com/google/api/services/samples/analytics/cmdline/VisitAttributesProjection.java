@@ -0,0 +1,87 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData.ColumnHeaders;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The column positions of the visit attributes dimensions and metrics in a page's rows, resolved once per
+ * column header schema instead of looking each one up by name for every row.
+ * <p/>
+ * Every page of the visit attributes query has the same headers, so one projection is compiled per
+ * schema and shared by all pages and days.
+ */
+class VisitAttributesProjection {
+    private static final ConcurrentMap<String, VisitAttributesProjection> COMPILED =
+            new ConcurrentHashMap<String, VisitAttributesProjection>();
+
+    private final String[] names;
+    final int demandBaseId;
+    final int clientId;
+    final int pagePath;
+    final int source;
+    final int medium;
+    final int pageviews;
+    final int sessionDuration;
+
+    private VisitAttributesProjection(List<ColumnHeaders> columnHeaders) {
+        names = new String[columnHeaders.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = columnHeaders.get(i).getName();
+        }
+        demandBaseId = indexOf("ga:dimension11");
+        clientId = indexOf("ga:dimension2");
+        pagePath = indexOf("ga:pagePath");
+        source = indexOf("ga:source");
+        medium = indexOf("ga:medium");
+        pageviews = indexOf("ga:pageviews");
+        sessionDuration = indexOf("ga:sessionDuration");
+    }
+
+    /**
+     * Returns the projection for {@code columnHeaders}, compiling it the first time the schema is
+     * seen.
+     *
+     * @throws IllegalStateException if one of the columns is missing from the headers.
+     */
+    static VisitAttributesProjection forHeaders(List<ColumnHeaders> columnHeaders) {
+        StringBuilder schema = new StringBuilder();
+        for (ColumnHeaders header : columnHeaders) {
+            schema.append(header.getName()).append(',');
+        }
+        String key = schema.toString();
+        VisitAttributesProjection projection = COMPILED.get(key);
+        if (projection == null) {
+            projection = new VisitAttributesProjection(columnHeaders);
+            COMPILED.putIfAbsent(key, projection);
+        }
+        return projection;
+    }
+
+    /**
+     * Returns whether this projection was compiled for {@code columnHeaders}, which is cheaper than
+     * {@link #forHeaders} for the usual case of a page like the one before.
+     */
+    boolean matches(List<ColumnHeaders> columnHeaders) {
+        if (columnHeaders.size() != names.length) {
+            return false;
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (!names[i].equals(columnHeaders.get(i).getName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int indexOf(String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalStateException("Visit attributes response has no " + name + " column");
+    }
+}
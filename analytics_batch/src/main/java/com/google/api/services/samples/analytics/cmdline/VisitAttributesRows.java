@@ -0,0 +1,126 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+import com.google.api.services.analytics.model.GaData.ColumnHeaders;
+import com.mongodb.BasicDBObject;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Turns visit attribute rows into {@code visit_attrs} documents for one day. Documents get a
+ * deterministic {@code _id}, so writing the same day again replaces its documents instead of adding
+ * to them. The pageviews and session duration of every row are summed in the day's
+ * {@link VisitAttributesDailyRollup}, which {@link #endDay} marks partial when sampled rows were
+ * left out.
+ * <p/>
+ * Each row is timed as a transform in {@code stages}, and each centre lookup as a lookup.
+ */
+class VisitAttributesRows implements GaRowSink {
+    private final DocumentSink writer;
+    private final PagePathNormalizer pagePaths;
+    private final CenterMappingIndex centerMapping;
+    private final String ingestRun;
+    private final IngestMetrics.Stages stages;
+    private final VisitAttributesDailyRollup rollup;
+    private final Date day;
+    private final String date;
+    private VisitAttributesProjection projection;
+    private int sampledPages;
+
+    /**
+     * @param ingestRun the run marker for replace day mode, or {@code null}.
+     */
+    VisitAttributesRows(DocumentSink writer, VisitAttributesDailyRollup rollup, PagePathNormalizer pagePaths,
+                        CenterMappingIndex centerMapping, String ingestRun, IngestMetrics.Stages stages) {
+        this.writer = writer;
+        this.pagePaths = pagePaths;
+        this.centerMapping = centerMapping;
+        this.ingestRun = ingestRun;
+        this.stages = stages;
+        this.rollup = rollup;
+        this.day = rollup.getDay();
+        this.date = new SimpleDateFormat("yyyy/MM/dd").format(day);
+    }
+
+    public boolean startPage(GaData gaData) {
+        if (gaData.getTotalResults() > 0) {
+            System.out.println("Data Table:" + writer);
+
+            List<ColumnHeaders> columnHeaders = gaData.getColumnHeaders();
+            if (projection == null || !projection.matches(columnHeaders)) {
+                projection = VisitAttributesProjection.forHeaders(columnHeaders);
+            }
+
+            if (!gaData.getContainsSampledData()) {
+                return true;
+            }
+            System.out.println(" Excluding analytics data since it has sample data");
+            sampledPages++;
+        } else {
+            System.out.println("No data");
+        }
+        return false;
+    }
+
+    public void row(List<String> rowValues) {
+        long start = System.nanoTime();
+        String demandBaseId = rowValues.get(projection.demandBaseId);
+        String clientId = rowValues.get(projection.clientId);
+        String pagePath = rowValues.get(projection.pagePath);
+        String source = rowValues.get(projection.source);
+        String medium = rowValues.get(projection.medium);
+        long pageviews = Long.parseLong(rowValues.get(projection.pageviews));
+        double sessionDuration = Double.parseDouble(rowValues.get(projection.sessionDuration));
+
+
+        HashMap<Object, Object> map = new HashMap<Object, Object>();
+        map.put("demandbase_sid", demandBaseId);
+        map.put("clientId", clientId);
+        PagePathNormalizer.PagePath parts = pagePaths.normalize(pagePath);
+        String strippedPagePath = parts.strippedPagePath;
+        String product = parts.product, centerId = "";
+        if (parts.centerLookUp.length() > 0) {
+            long lookUpStart = System.nanoTime();
+            centerId = centerMapping.lookUp(parts.centerLookUp);
+            stages.lookup.record(lookUpStart, 1);
+        }
+        map.put("pagePath", strippedPagePath);
+        map.put("source", source);
+        map.put("medium", medium);
+        map.put("product", product);
+        map.put("centerId", centerId);
+        map.put("date", date);
+        map.put("_id", visitAttributesId(date, demandBaseId, clientId, pagePath, source, medium));
+        if (ingestRun != null) {
+            map.put("ingestRun", ingestRun);
+        }
+        BasicDBObject objectToInsert = new BasicDBObject(map);
+        rollup.add(centerId, product, source, medium, pageviews, sessionDuration);
+        stages.transform.record(start, 1);
+        writer.add(day, objectToInsert);
+    }
+
+    /**
+     * Marks the day's rollup partial if rows of the day were left out as sampled. Read through a
+     * {@code splitter}, these are only the single hours it could not split: the sampled pages it
+     * split further, which may have come here when streaming, are read again as hour slices.
+     *
+     * @param splitter the splitter the day was read through, or {@code null}.
+     */
+    void endDay(SampledQuerySplitter splitter) {
+        if (splitter != null ? splitter.getSampledHours() > 0 : sampledPages > 0) {
+            rollup.markPartial();
+        }
+    }
+
+    /**
+     * Derives the {@code _id} of a visit attributes document from the row's dimensions and date.
+     */
+    static String visitAttributesId(String date, String demandBaseId, String clientId, String pagePath,
+                                    String source, String medium) {
+        return Sha1.ofParts(date, demandBaseId, clientId, pagePath, source, medium);
+    }
+}
@@ -0,0 +1,107 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the latest document of every visited company a run saw, so that a company seen on many
+ * days is upserted once per run instead of once per day, with the data of the last day it was seen
+ * and the first visit date resolved when it was first seen, see {@link FirstVisitIndex}.
+ * <p/>
+ * The columnar files, whose partitions are days, are not deduplicated: every company is added to
+ * them under each day it was seen on as soon as it is added here, so a day's partition holds all
+ * of the day's companies, the same as when the days are written one at a time.
+ * <p/>
+ * The documents are written on {@link #flush()}, which the run calls when it is done or, to bound
+ * the memory held, when {@link #isFull()}. A company seen again after a flush is written again.
+ * Since the companies of a day are only stored once they are written, {@link #flush()} returns the
+ * days that are complete, for their checkpoints.
+ */
+class VisitedCompaniesBuffer {
+    private final DocumentSink sink;
+    private final DocumentSink files;
+    private final int maxCompanies;
+    // key of the sid -> latest document and its day
+    private final Map<String, Company> companies = new LinkedHashMap<String, Company>();
+    private final List<Date> addedDays = new ArrayList<Date>();
+
+    private static class Company {
+        final Date day;
+        final DBObject document;
+
+        Company(Date day, DBObject document) {
+            this.day = day;
+            this.document = document;
+        }
+    }
+
+    /**
+     * @param sink  where the companies are upserted, without the columnar files.
+     * @param files the columnar files, or {@code null} for none.
+     */
+    VisitedCompaniesBuffer(DocumentSink sink, DocumentSink files, int maxCompanies) {
+        this.sink = sink;
+        this.files = files;
+        this.maxCompanies = maxCompanies;
+    }
+
+    /**
+     * Adds the companies of a page of day {@code d}, by {@code demandbase_sid}, replacing those of
+     * earlier days. They are added to the files right away.
+     */
+    void add(Date d, Map<Object, DBObject> pageCompanies) {
+        for (Map.Entry<Object, DBObject> company : pageCompanies.entrySet()) {
+            if (files != null) {
+                files.add(d, company.getValue());
+            }
+            companies.put(FirstVisitIndex.key(company.getKey()), new Company(d, company.getValue()));
+        }
+    }
+
+    /**
+     * Records that every company of day {@code d} was added, and flushes the files, so that no more
+     * than a day's parts are open at a time.
+     */
+    void dayAdded(Date d) {
+        addedDays.add(d);
+        if (files != null) {
+            files.flush();
+        }
+    }
+
+    boolean isFull() {
+        return companies.size() >= maxCompanies;
+    }
+
+    /**
+     * Writes the companies held to the sink and flushes it and the files.
+     *
+     * @return the days all companies of which are written now, in the order they were added. Once a
+     *         write failed none are, as the failed companies may belong to any day held.
+     */
+    List<Date> flush() {
+        for (Company company : companies.values()) {
+            sink.add(company.day, company.document);
+        }
+        sink.flush();
+        if (files != null) {
+            files.flush();
+        }
+        System.out.println("Wrote " + companies.size() + " visited companies of " + addedDays.size()
+                + " complete days to " + sink);
+        companies.clear();
+        List<Date> written = new ArrayList<Date>(addedDays);
+        addedDays.clear();
+        if (sink.getFailedCount() > 0) {
+            System.out.println(sink.getFailedCount() + " visited companies failed to be written, " + written.size()
+                    + " days are read again by the next run");
+            return new ArrayList<Date>();
+        }
+        return written;
+    }
+}
@@ -1,5 +1,7 @@
 package com.regus.mail.processor;
 
+import com.google.api.services.samples.analytics.cmdline.DocumentSink;
+import com.google.api.services.samples.analytics.cmdline.DocumentSinks;
 import com.mongodb.BasicDBObject;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
@@ -10,8 +12,10 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 
@@ -61,25 +65,57 @@ public class MailProcessor {
         return Session.getInstance(props, null);
     }
 
+    /**
+     * Writes the form fills to the sinks set with {@code regus.sink}, see
+     * {@link DocumentSinks#fromSystemProperties}, columnar files partitioned by the day they were
+     * sent. The messages are moved to {@code processedFolder} once the sink is closed, and only if
+     * every form fill was written; otherwise they stay to be read again by the next run.
+     */
     private static void processMessages(Folder formFolder, Folder processedFolder) throws MessagingException, IOException {
         MongoClient mongo = new MongoClient("localhost", 27017);
         DB regus_analytics_db = mongo.getDB("regus_analytics");
         DBCollection regusMail = regus_analytics_db.getCollection("mail");
+        // every run brings new mail for days written before
+        DocumentSink sink = DocumentSinks.fromSystemProperties(true).open(regusMail);
 
-        for (int msgNum = 1; msgNum <= formFolder.getMessageCount(); msgNum++) {
-            Map<String, String> formValues = new HashMap<String, String>();
-            Message msg = formFolder.getMessage(msgNum);
-            formValues.putAll(getSentDateAndTime(msg));
-            formValues.putAll(getCountryAndProductFromMsgSubject(msg.getSubject()));
-            formValues.putAll(processMessageContent(msg));
-
+        List<Message> processed = new ArrayList<Message>();
+        boolean read = false;
+        try {
+            for (int msgNum = 1; msgNum <= formFolder.getMessageCount(); msgNum++) {
+                Map<String, String> formValues = new HashMap<String, String>();
+                Message msg = formFolder.getMessage(msgNum);
+                formValues.putAll(getSentDateAndTime(msg));
+                formValues.putAll(getCountryAndProductFromMsgSubject(msg.getSubject()));
+                formValues.putAll(processMessageContent(msg));
 
-            BasicDBObject objectToInsert = new BasicDBObject(formValues);
-            regusMail.insert(objectToInsert);
 
-            Message[] msgs = {msg};
+                BasicDBObject objectToInsert = new BasicDBObject(formValues);
+                sink.add(msg.getSentDate(), objectToInsert);
+                processed.add(msg);
+            }
+            read = true;
+        } finally {
+            if (!read) {
+                // the messages stay where they are, don't let a failing close hide why
+                try {
+                    sink.close();
+                } catch (RuntimeException e) {
+                    System.err.println("Cannot close " + sink + ": " + e);
+                }
+            }
+        }
+        sink.close();
+        if (sink.getFailedCount() > 0) {
+            System.err.println(sink.getFailedCount() + " form fills failed to be written, none of the "
+                    + processed.size() + " messages are moved");
+            return;
+        }
+        if (!processed.isEmpty()) {
+            Message[] msgs = processed.toArray(new Message[processed.size()]);
             formFolder.copyMessages(msgs, processedFolder);
-            msg.setFlag(Flags.Flag.DELETED, true);
+            for (Message msg : msgs) {
+                msg.setFlag(Flags.Flag.DELETED, true);
+            }
         }
     }
 
@@ -92,7 +128,7 @@ public class MailProcessor {
         return formValues;
     }
 
-    private static Map<String, String> processMessageContent(Message msg) {
+    static Map<String, String> processMessageContent(Message msg) {
         String[] lines;
         boolean isQuestionBody = false;
         StringBuilder questionBody = new StringBuilder();
@@ -152,7 +188,7 @@ public class MailProcessor {
         return formValues;
     }
 
-    private static Map<String, String> getCountryAndProductFromMsgSubject(String subject) {
+    static Map<String, String> getCountryAndProductFromMsgSubject(String subject) {
         String country, product;
         Map<String, String> formValues = new HashMap<String, String>();
         if (subject.contains("Canada")) {
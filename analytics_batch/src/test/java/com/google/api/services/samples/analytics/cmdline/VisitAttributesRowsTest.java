@@ -0,0 +1,178 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+import com.google.api.services.analytics.model.GaData.ColumnHeaders;
+import com.mongodb.DBObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks when the daily rollup of the visit attributes is marked partial. The pages are handed to
+ * the rows as they are read, the way the streaming decoder does, which also hands over the sampled
+ * pages that {@link SampledQuerySplitter} reads again as hour slices.
+ */
+public class VisitAttributesRowsTest {
+    private static final String[] COLUMNS = {"ga:dimension11", "ga:dimension2", "ga:pagePath", "ga:source",
+            "ga:medium", "ga:pageviews", "ga:sessionDuration"};
+
+    private VisitAttributesDailyRollup rollup;
+    private VisitAttributesRows rows;
+    private List<DBObject> written;
+
+    @Before
+    public void setUp() throws Exception {
+        Date d = new SimpleDateFormat("yyyy-MM-dd").parse("2015-06-01");
+        written = new ArrayList<DBObject>();
+        rollup = new VisitAttributesDailyRollup(d);
+        rows = new VisitAttributesRows(new ListSink(new ArrayList<DBObject>()), rollup, new PagePathNormalizer(100),
+                new CenterMappingIndex(new HashMap<String, String>()), null, new IngestMetrics(false).stages("visit_attributes", d));
+    }
+
+    @Test
+    public void sampledDaySplitIntoCleanHoursIsWritten() throws IOException {
+        // the whole day is sampled, both halves of it are not
+        StreamingSplitter splitter = new StreamingSplitter(Arrays.asList("whole day"));
+        readAll(splitter);
+
+        rows.endDay(splitter);
+        assertEquals(0, splitter.getSampledHours());
+        assertFalse(rollup.isPartial());
+        assertEquals(1, rollup.writeTo(new ListSink(written), "run"));
+        assertEquals(2L, written.get(0).get("pageviews"));
+    }
+
+    @Test
+    public void hourStillSampledMarksPartial() throws IOException {
+        StreamingSplitter splitter = new StreamingSplitter(Arrays.asList("whole day", "00-11", "00-05", "00-02",
+                "00-01", "00"));
+        readAll(splitter);
+
+        rows.endDay(splitter);
+        assertEquals(1, splitter.getSampledHours());
+        assertTrue(rollup.isPartial());
+    }
+
+    @Test
+    public void sampledPageWithoutSplittingMarksPartial() {
+        assertFalse(rows.startPage(page(true)));
+
+        rows.endDay(null);
+        assertTrue(rollup.isPartial());
+    }
+
+    private void readAll(SampledQuerySplitter splitter) throws IOException {
+        try {
+            while (splitter.next() != null) {
+                // the rows were handed over while reading
+            }
+        } finally {
+            splitter.close();
+        }
+    }
+
+    private static GaData page(boolean sampled) {
+        List<ColumnHeaders> headers = new ArrayList<ColumnHeaders>();
+        for (String column : COLUMNS) {
+            headers.add(new ColumnHeaders().setName(column));
+        }
+        List<List<String>> pageRows = new ArrayList<List<String>>();
+        pageRows.add(Arrays.asList("1001", "1.1433116800", "/en-gb/office-space/", "google", "organic", "1", "30.0"));
+        return new GaData().setColumnHeaders(headers).setRows(pageRows).setTotalResults(pageRows.size())
+                .setContainsSampledData(sampled);
+    }
+
+    /**
+     * Reads one page per slice, sampled for the slices named in {@code sampled} (the whole day, or
+     * the hours of the slice as {@code from-to}, or a single hour), and hands each to the rows.
+     */
+    private class StreamingSplitter extends SampledQuerySplitter {
+        private final List<String> sampled;
+
+        StreamingSplitter(List<String> sampled) {
+            this.sampled = sampled;
+        }
+
+        @Override
+        GaPageReader openSlice(final String hourFilter) {
+            final GaData page = page(sampled.contains(slice(hourFilter)));
+            return new GaPageReader() {
+                private boolean read;
+
+                @Override
+                GaData next() {
+                    if (read) {
+                        return null;
+                    }
+                    read = true;
+                    if (rows.startPage(page)) {
+                        for (List<String> row : page.getRows()) {
+                            rows.row(row);
+                        }
+                    }
+                    return page;
+                }
+
+                @Override
+                void close() {
+                }
+            };
+        }
+
+        @Override
+        void onSampled(String hourFilter) {
+        }
+
+        @Override
+        void onSampledHour(String hourFilter) {
+        }
+    }
+
+    /**
+     * Returns {@code whole day}, {@code from-to} or the single hour of {@code hourFilter}.
+     */
+    private static String slice(String hourFilter) {
+        if (hourFilter == null) {
+            return "whole day";
+        }
+        String[] hours = hourFilter.substring("ga:hour=~^(".length(), hourFilter.length() - 2).split("\\|");
+        return hours.length == 1 ? hours[0] : hours[0] + "-" + hours[hours.length - 1];
+    }
+
+    private static class ListSink implements DocumentSink {
+        private final List<DBObject> documents;
+
+        ListSink(List<DBObject> documents) {
+            this.documents = documents;
+        }
+
+        public void add(Date day, DBObject document) {
+            documents.add(document);
+        }
+
+        public void flush() {
+        }
+
+        public void close() {
+        }
+
+        public long getWrittenCount() {
+            return documents.size();
+        }
+
+        public long getFailedCount() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.analytics.model.GaData;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the fixtures under {@code /fixtures} on the class path, which stand in for a day of
+ * recorded Core Reporting responses and {@code center_mapping}, so the benchmarks run offline.
+ */
+class Fixtures {
+
+    /**
+     * Reads a Core Reporting response.
+     */
+    static GaData gaData(String name) throws IOException {
+        InputStream in = open(name);
+        try {
+            return new JacksonFactory().fromInputStream(in, GaData.class);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Reads the non-blank lines of a text fixture.
+     */
+    static List<String> lines(String name) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(open(name), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() > 0) {
+                    lines.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    /**
+     * Reads {@code centre_mapping.tsv}, {@code CentreURLName} and {@code CentreID} per line.
+     */
+    static Map<String, String> centreIds() throws IOException {
+        Map<String, String> centreIds = new HashMap<String, String>();
+        for (String line : lines("centre_mapping.tsv")) {
+            String[] columns = line.split("\t");
+            centreIds.put(columns[0], columns[1]);
+        }
+        return centreIds;
+    }
+
+    private static InputStream open(String name) throws IOException {
+        InputStream in = Fixtures.class.getResourceAsStream("/fixtures/" + name);
+        if (in == null) {
+            throw new IOException("No fixture " + name);
+        }
+        return in;
+    }
+}
@@ -0,0 +1,573 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A local stand-in for the {@code data/ga} and {@code data/mcf} endpoints of the Analytics API v3,
+ * so the batch can be load tested without spending quota. Point the samples at it with
+ * {@code regus.api.rootUrl}.
+ * <p/>
+ * Every query gets {@code rowsPerDay} rows for each day of its date range, paged by
+ * {@code start-index} and {@code max-results} like the API does. Rows are synthetic but the same on
+ * every request for the same query, with plausible values for the dimensions the batch asks for,
+ * such as Demandbase blobs for {@code ga:dimension20} and Regus page paths for {@code ga:pagePath}.
+ * A query restricted to some hours, with {@code ga:hour==} or an alternation such as the
+ * {@code ga:hour=~^(00|01)$} of {@link SampledQuerySplitter}, gets the share of them of its hours.
+ * With a {@link GaResponseCache} directory as {@code replayDir}, the responses recorded there are
+ * served instead wherever there is one.
+ * <p/>
+ * Each response is held back by {@code latencyMillis} plus up to {@code jitterMillis}. A share of
+ * the queries, {@code sampledRate}, comes back flagged as sampled, except for single hours, and a
+ * share of the requests fails with a 503, {@code errorRate}, or a rate limit 403,
+ * {@code rateLimitRate}. All settings are read from {@code regus.standIn.*} system properties, see
+ * {@link Settings#fromSystemProperties()}.
+ * <p/>
+ * Batch requests are not supported, so leave {@code regus.fetch.batchFirstPages} off.
+ * <p/>
+ * Usage: {@code GaApiStandIn}, which serves on {@code regus.standIn.port} until it is stopped.
+ */
+public class GaApiStandIn {
+    private static final String RECORDED_ROOT_URL = "https://www.googleapis.com";
+    private static final String[] CITIES = {"london-city-point", "london-liverpool-street", "manchester-spinningfields",
+            "new-york-times-square", "chicago-loop", "toronto-bay-street", "paris-opera", "berlin-mitte",
+            "amsterdam-zuidas", "sydney-martin-place"};
+    private static final String[] PRODUCTS = {"office-space", "virtual-office", "meeting-rooms", "business-lounges",
+            "coworking"};
+    private static final String[][] SOURCES = {{"google", "organic"}, {"google", "cpc"}, {"(direct)", "(none)"},
+            {"bing", "organic"}, {"linkedin.com", "referral"}, {"newsletter", "email"}};
+    private static final String[] COUNTRIES = {"GB", "US", "CA", "FR", "(not set)"};
+
+    /**
+     * How the stand-in answers.
+     */
+    static class Settings {
+        int rowsPerDay = 20000;
+        long latencyMillis = 200;
+        long jitterMillis = 100;
+        double sampledRate;
+        double errorRate;
+        double rateLimitRate;
+        File replayDir;
+
+        /**
+         * Reads {@code regus.standIn.rowsPerDay} (default 20000), {@code latencyMillis} (200),
+         * {@code jitterMillis} (100), {@code sampledRate}, {@code errorRate} and
+         * {@code rateLimitRate} (0 each) and {@code replayDir} (none), all under
+         * {@code regus.standIn.}.
+         */
+        static Settings fromSystemProperties() {
+            Settings settings = new Settings();
+            settings.rowsPerDay = Integer.getInteger("regus.standIn.rowsPerDay", settings.rowsPerDay);
+            settings.latencyMillis = Long.getLong("regus.standIn.latencyMillis", settings.latencyMillis);
+            settings.jitterMillis = Long.getLong("regus.standIn.jitterMillis", settings.jitterMillis);
+            settings.sampledRate = Double.parseDouble(System.getProperty("regus.standIn.sampledRate", "0"));
+            settings.errorRate = Double.parseDouble(System.getProperty("regus.standIn.errorRate", "0"));
+            settings.rateLimitRate = Double.parseDouble(System.getProperty("regus.standIn.rateLimitRate", "0"));
+            String replayDir = System.getProperty("regus.standIn.replayDir");
+            settings.replayDir = replayDir == null ? null : new File(replayDir);
+            return settings;
+        }
+    }
+
+    private final Settings settings;
+    private final JsonFactory json = new JsonFactory();
+    private final Random random = new Random();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failedRequests = new AtomicLong();
+    private final AtomicLong replayedPages = new AtomicLong();
+    private final AtomicLong rows = new AtomicLong();
+
+    GaApiStandIn(Settings settings) {
+        this.settings = settings;
+    }
+
+    public static void main(String[] args) throws IOException {
+        GaApiStandIn standIn = new GaApiStandIn(Settings.fromSystemProperties());
+        System.out.println("Serving the Analytics API at " + standIn.start(Integer.getInteger("regus.standIn.port", 8089)));
+    }
+
+    /**
+     * Starts serving on {@code port} of the loopback interface, 0 for any free port.
+     *
+     * @return the root URL to set as {@code regus.api.rootUrl}.
+     */
+    String start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ga-stand-in-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server.setExecutor(executor);
+        server.createContext("/analytics/v3/data/ga", new Endpoint(false));
+        server.createContext("/analytics/v3/data/mcf", new Endpoint(true));
+        server.start();
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    long getRequests() {
+        return requests.get();
+    }
+
+    long getFailedRequests() {
+        return failedRequests.get();
+    }
+
+    long getRows() {
+        return rows.get();
+    }
+
+    long getReplayedPages() {
+        return replayedPages.get();
+    }
+
+    private class Endpoint implements HttpHandler {
+        private final boolean mcf;
+
+        Endpoint(boolean mcf) {
+            this.mcf = mcf;
+        }
+
+        public void handle(HttpExchange exchange) throws IOException {
+            try {
+                requests.incrementAndGet();
+                sleep(settings.latencyMillis + (settings.jitterMillis > 0 ? (long) (random.nextDouble() * settings.jitterMillis) : 0));
+                double roll = random.nextDouble();
+                if (roll < settings.errorRate) {
+                    failedRequests.incrementAndGet();
+                    sendError(exchange, 503, "backendError", "Backend Error");
+                    return;
+                }
+                if (roll < settings.errorRate + settings.rateLimitRate) {
+                    failedRequests.incrementAndGet();
+                    sendError(exchange, 403, "userRateLimitExceeded", "User Rate Limit Exceeded");
+                    return;
+                }
+                Map<String, String> params = parameters(exchange.getRequestURI().getRawQuery());
+                byte[] gzipped = replay(exchange);
+                if (gzipped != null) {
+                    replayedPages.incrementAndGet();
+                    send(exchange, 200, gzipped, true);
+                } else {
+                    send(exchange, 200, page(params), false);
+                }
+            } catch (IllegalArgumentException e) {
+                sendError(exchange, 400, "invalidParameter", e.getMessage());
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+                sendError(exchange, 500, "internalError", String.valueOf(e));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        /**
+         * Writes one page of the synthetic response to a query.
+         */
+        private byte[] page(Map<String, String> params) throws IOException {
+            List<Date> days = days(required(params, "start-date"), required(params, "end-date"));
+            List<String> dimensions = list(params.get("dimensions"));
+            List<String> metrics = list(required(params, "metrics"));
+            String filters = params.get("filters");
+            int hours = hours(filters);
+            int rowsPerDay = Math.max(1, settings.rowsPerDay * hours / 24);
+            int totalResults = rowsPerDay * days.size();
+            int startIndex = params.containsKey("start-index") ? Integer.parseInt(params.get("start-index")) : 1;
+            int maxResults = Math.min(10000, params.containsKey("max-results") ? Integer.parseInt(params.get("max-results")) : 1000);
+            long seed = seed(params);
+            boolean sampled = hours > 1 && (seed & 0xffff) < settings.sampledRate * 0x10000;
+            int first = startIndex - 1;
+            int last = Math.min(totalResults, first + maxResults);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonGenerator page = json.createGenerator(out);
+            page.writeStartObject();
+            page.writeStringField("kind", mcf ? "analytics#mcfData" : "analytics#gaData");
+            page.writeObjectFieldStart("query");
+            page.writeStringField("start-date", params.get("start-date"));
+            page.writeStringField("end-date", params.get("end-date"));
+            page.writeStringField("ids", params.get("ids"));
+            if (!dimensions.isEmpty()) {
+                page.writeStringField("dimensions", params.get("dimensions"));
+            }
+            writeArray(page, "metrics", metrics);
+            if (params.containsKey("sort")) {
+                writeArray(page, "sort", list(params.get("sort")));
+            }
+            if (filters != null) {
+                page.writeStringField("filters", filters);
+            }
+            page.writeNumberField("start-index", startIndex);
+            page.writeNumberField("max-results", maxResults);
+            page.writeEndObject();
+            page.writeNumberField("itemsPerPage", maxResults);
+            page.writeNumberField("totalResults", totalResults);
+            if (last < totalResults) {
+                page.writeStringField("nextLink", "start-index=" + (last + 1));
+            }
+            page.writeBooleanField("containsSampledData", sampled);
+            if (sampled) {
+                page.writeStringField("sampleSize", String.valueOf(totalResults / 2));
+                page.writeStringField("sampleSpace", String.valueOf(totalResults));
+            }
+            page.writeArrayFieldStart("columnHeaders");
+            for (String dimension : dimensions) {
+                writeHeader(page, dimension, "DIMENSION", mcf && dimension.endsWith("Path") ? "MCF_SEQUENCE" : "STRING");
+            }
+            for (String metric : metrics) {
+                writeHeader(page, metric, "METRIC", metric.endsWith("Duration") ? "TIME" : "INTEGER");
+            }
+            page.writeEndArray();
+            page.writeObjectFieldStart("totalsForAllResults");
+            for (String metric : metrics) {
+                page.writeStringField(metric, String.valueOf(totalResults));
+            }
+            page.writeEndObject();
+            if (last > first) {
+                SimpleDateFormat gaDate = new SimpleDateFormat("yyyyMMdd");
+                page.writeArrayFieldStart("rows");
+                for (int row = first; row < last; row++) {
+                    long hash = mix(seed ^ (row * 0x9E3779B97F4A7C15L));
+                    Date day = days.get(row / rowsPerDay);
+                    page.writeStartArray();
+                    for (int column = 0; column < dimensions.size(); column++) {
+                        String dimension = dimensions.get(column);
+                        String value = dimension.endsWith(":date") ? gaDate.format(day)
+                                : dimensionValue(dimension, mix(hash + column), row);
+                        if (!mcf) {
+                            page.writeString(value);
+                        } else if (dimension.endsWith("Path")) {
+                            writeConversionPath(page, mix(hash + column));
+                        } else {
+                            writePrimitive(page, value);
+                        }
+                    }
+                    for (int column = 0; column < metrics.size(); column++) {
+                        String value = metricValue(metrics.get(column), mix(hash - column - 1));
+                        if (mcf) {
+                            writePrimitive(page, value);
+                        } else {
+                            page.writeString(value);
+                        }
+                    }
+                    page.writeEndArray();
+                }
+                page.writeEndArray();
+                rows.addAndGet(last - first);
+            }
+            page.writeEndObject();
+            page.close();
+            return out.toByteArray();
+        }
+    }
+
+    /**
+     * Returns the gzipped recorded response to the request, or {@code null} if there is none. The
+     * recording is keyed like {@link GaResponseCache} does, by the URL the real API was asked with.
+     */
+    private byte[] replay(HttpExchange exchange) throws IOException {
+        if (settings.replayDir == null) {
+            return null;
+        }
+        String url = RECORDED_ROOT_URL + exchange.getRequestURI().getRawPath() + "?" + exchange.getRequestURI().getRawQuery();
+        File entry = new File(settings.replayDir, Sha1.of(url) + ".json.gz");
+        if (!entry.isFile()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(entry);
+        try {
+            return toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void sendError(HttpExchange exchange, int code, String reason, String message) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        JsonGenerator error = json.createGenerator(out);
+        error.writeStartObject();
+        error.writeObjectFieldStart("error");
+        error.writeArrayFieldStart("errors");
+        error.writeStartObject();
+        error.writeStringField("domain", code == 403 ? "usageLimits" : "global");
+        error.writeStringField("reason", reason);
+        error.writeStringField("message", message);
+        error.writeEndObject();
+        error.writeEndArray();
+        error.writeNumberField("code", code);
+        error.writeStringField("message", message);
+        error.writeEndObject();
+        error.writeEndObject();
+        error.close();
+        send(exchange, code, out.toByteArray(), false);
+    }
+
+    /**
+     * Sends a JSON body, gzipped if the client accepts it, as the API does.
+     */
+    private static void send(HttpExchange exchange, int code, byte[] body, boolean gzipped) throws IOException {
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        if (gzipped && !gzip) {
+            body = toByteArray(new GZIPInputStream(new java.io.ByteArrayInputStream(body)));
+        } else if (!gzipped && gzip) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 4);
+            GZIPOutputStream compressed = new GZIPOutputStream(out);
+            compressed.write(body);
+            compressed.close();
+            body = out.toByteArray();
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(code, body.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(body);
+        out.close();
+    }
+
+    private static String dimensionValue(String dimension, long hash, int row) {
+        int pick = (int) ((hash >>> 1) % 1000003);
+        if (dimension.equals("ga:dimension20")) {
+            return demandbase(pick % 5000, hash);
+        } else if (dimension.equals("ga:dimension11")) {
+            return String.valueOf(10000000 + pick % 5000);
+        } else if (dimension.equals("ga:dimension2")) {
+            return (1000000000 + pick) + "." + (1433116800 + row);
+        } else if (dimension.equals("ga:dimension3")) {
+            return COUNTRIES[pick % COUNTRIES.length];
+        } else if (dimension.equals("ga:pagePath")) {
+            return pagePath(pick);
+        } else if (dimension.endsWith(":source")) {
+            return SOURCES[pick % SOURCES.length][0];
+        } else if (dimension.endsWith(":medium")) {
+            return SOURCES[pick % SOURCES.length][1];
+        } else if (dimension.endsWith(":hour")) {
+            return String.format("%02d", pick % 24);
+        }
+        return "value-" + pick % 100;
+    }
+
+    private static String metricValue(String metric, long hash) {
+        int pick = (int) ((hash >>> 1) % 1000003);
+        if (metric.endsWith("Duration")) {
+            return (pick % 9000) / 10 + "." + pick % 10;
+        }
+        return String.valueOf(1 + pick % 5);
+    }
+
+    private static String pagePath(int pick) {
+        String site = pick % 3 == 0 ? "www.regus.com/en-us" : pick % 3 == 1 ? "www.regus.co.uk/en-gb" : "www.regus.ca/en-ca";
+        String product = PRODUCTS[pick / 3 % PRODUCTS.length];
+        String city = CITIES[pick / 15 % CITIES.length];
+        switch (pick / 150 % 5) {
+            case 0:
+                return site + "/" + product;
+            case 1:
+                return site + "/locations/" + product + "/" + city + "?utm_campaign=c" + pick % 50;
+            case 2:
+                return site + "/locations/" + product + "/" + city + "/meeting-rooms";
+            default:
+                return site + "/locations/" + product + "/" + city;
+        }
+    }
+
+    private static String demandbase(int company, long hash) {
+        return "{\"company_name\":\"Company " + company + " Ltd\",\"demandbase_sid\":" + (10000000 + company)
+                + ",\"marketing_alias\":\"Company " + company + "\",\"industry\":\"Business Services\""
+                + ",\"employee_count\":" + (5 + (hash >>> 8) % 100000) + ",\"isp\":false"
+                + ",\"city\":\"London\",\"country\":\"GB\",\"country_name\":\"United Kingdom\""
+                + ",\"ip\":\"81.2." + company % 256 + "." + (hash >>> 3) % 256 + "\""
+                + ",\"latitude\":51.5" + (hash >>> 5) % 1000 + ",\"longitude\":-0.1" + (hash >>> 7) % 1000
+                + ",\"revenue_range\":\"$5M - $10M\",\"audience\":\"SMB\",\"b2b\":true,\"b2c\":false"
+                + ",\"web_site\":\"company" + company + ".co.uk\",\"information_level\":\"Detailed\"}";
+    }
+
+    private static void writeHeader(JsonGenerator page, String name, String columnType, String dataType) throws IOException {
+        page.writeStartObject();
+        page.writeStringField("name", name);
+        page.writeStringField("columnType", columnType);
+        page.writeStringField("dataType", dataType);
+        page.writeEndObject();
+    }
+
+    private static void writePrimitive(JsonGenerator page, String value) throws IOException {
+        page.writeStartObject();
+        page.writeStringField("primitiveValue", value);
+        page.writeEndObject();
+    }
+
+    private static void writeConversionPath(JsonGenerator page, long hash) throws IOException {
+        page.writeStartObject();
+        page.writeArrayFieldStart("conversionPathValue");
+        for (int step = 0; step <= (hash >>> 2) % 3; step++) {
+            page.writeStartObject();
+            page.writeStringField("interactionType", "CLICK");
+            page.writeStringField("nodeValue", SOURCES[(int) ((hash >>> (4 + step * 3)) % SOURCES.length)][0]);
+            page.writeEndObject();
+        }
+        page.writeEndArray();
+        page.writeEndObject();
+    }
+
+    private static void writeArray(JsonGenerator page, String name, List<String> values) throws IOException {
+        page.writeArrayFieldStart(name);
+        for (String value : values) {
+            page.writeString(value);
+        }
+        page.writeEndArray();
+    }
+
+    /**
+     * Returns the days from {@code startDate} to {@code endDate}, which must be {@code yyyy-MM-dd}.
+     */
+    private static List<Date> days(String startDate, String endDate) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        try {
+            List<Date> days = new ArrayList<Date>();
+            Date end = format.parse(endDate);
+            for (Date d = format.parse(startDate); !d.after(end); d = new Date(d.getTime() + 24L * 60 * 60 * 1000)) {
+                days.add(d);
+            }
+            if (days.isEmpty()) {
+                throw new IllegalArgumentException("end-date is before start-date");
+            }
+            return days;
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Only yyyy-MM-dd dates are supported: " + startDate + ", " + endDate);
+        }
+    }
+
+    /**
+     * Returns the number of hours of the day {@code filters} restricts a query to, 24 unless they
+     * have an {@code ga:hour==} or {@code ga:hour=~^(..|..)$} condition.
+     */
+    private static int hours(String filters) {
+        if (filters == null) {
+            return 24;
+        }
+        for (String filter : filters.split(";")) {
+            if (filter.startsWith("ga:hour==")) {
+                return 1;
+            }
+            if (filter.startsWith("ga:hour=~^(") && filter.endsWith(")$")) {
+                return filter.substring("ga:hour=~^(".length(), filter.length() - 2).split("\\|").length;
+            }
+        }
+        return 24;
+    }
+
+    /**
+     * Derives the rows of a query from everything but its paging.
+     */
+    private static long seed(Map<String, String> params) {
+        String query = params.get("ids") + params.get("start-date") + params.get("end-date") + params.get("metrics")
+                + params.get("dimensions") + params.get("filters");
+        return mix(query.hashCode());
+    }
+
+    private static long mix(long z) {
+        // the SplitMix64 finalizer
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static Map<String, String> parameters(String rawQuery) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (rawQuery == null) {
+            return params;
+        }
+        for (String param : rawQuery.split("&")) {
+            int equals = param.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(param.substring(0, equals), "UTF-8"),
+                        URLDecoder.decode(param.substring(equals + 1), "UTF-8"));
+            }
+        }
+        return params;
+    }
+
+    private static String required(Map<String, String> params, String name) {
+        String value = params.get(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Required parameter: " + name);
+        }
+        return value;
+    }
+
+    private static List<String> list(String commaSeparated) {
+        List<String> values = new ArrayList<String>();
+        if (commaSeparated != null) {
+            for (String value : commaSeparated.split(",")) {
+                if (value.length() > 0) {
+                    values.add(value);
+                }
+            }
+        }
+        return values;
+    }
+
+    private static byte[] toByteArray(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private static void sleep(long millis) {
+        if (millis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
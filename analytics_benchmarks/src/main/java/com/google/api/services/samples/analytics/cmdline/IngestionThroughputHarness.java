@@ -0,0 +1,259 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DB;
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs {@link CoreReportingApiReferenceSample} end to end against a {@link GaApiStandIn} and a
+ * MongoDB, once per fetch mode, and reports the rows ingested per second and the time taken per day,
+ * with the totals of the stages recorded in {@link IngestMetrics}.
+ * <p/>
+ * Each mode runs in a JVM of its own, since the sample reads its settings into static finals, on an
+ * emptied database with {@code center_mapping} loaded from the fixtures. The modes are
+ * <ul>
+ * <li>{@code sequential}, a page at a time, nothing prefetched;</li>
+ * <li>{@code pipelined}, the defaults, with the next pages fetched while one is written;</li>
+ * <li>{@code parallelPages}, the pages of a day fetched four at a time;</li>
+ * <li>{@code parallelDays}, four days backfilled at once;</li>
+ * <li>{@code streaming}, visit attributes handled as their pages are parsed;</li>
+ * <li>{@code multiDay}, up to seven days read with one query.</li>
+ * </ul>
+ * Settings are system properties: {@code regus.harness.start} (default 2015-06-01),
+ * {@code regus.harness.days} (7), {@code regus.harness.modes} (all, comma separated),
+ * {@code regus.harness.mongo}, {@code embedded} for an in-memory server, the default, or
+ * {@code host:port} of a real one, and {@code regus.harness.timeoutMinutes} (30) per mode. The
+ * {@code regus.standIn.*} properties shape the stand-in, see {@link GaApiStandIn.Settings}, and any
+ * other {@code regus.*} property is passed on to the sample.
+ */
+public class IngestionThroughputHarness {
+    private static final String DATABASE = "regus_analytics_harness";
+    private static final Map<String, String[]> MODES = new LinkedHashMap<String, String[]>();
+
+    static {
+        MODES.put("sequential", new String[]{"-Dregus.fetch.prefetchPages=0"});
+        MODES.put("pipelined", new String[0]);
+        MODES.put("parallelPages", new String[]{"-Dregus.fetch.parallelPages=4"});
+        MODES.put("parallelDays", new String[]{"-Dregus.backfill.parallelism=4"});
+        MODES.put("streaming", new String[]{"-Dregus.fetch.streaming=true"});
+        MODES.put("multiDay", new String[]{"-Dregus.plan.maxDaysPerQuery=7"});
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+        Date start = format.parse(System.getProperty("regus.harness.start", "2015-06-01"));
+        int days = Integer.getInteger("regus.harness.days", 7);
+        Date end = new Date(start.getTime() + (days - 1) * 24L * 60 * 60 * 1000);
+        String mongoSetting = System.getProperty("regus.harness.mongo", "embedded");
+        long timeoutMinutes = Long.getLong("regus.harness.timeoutMinutes", 30);
+        List<String> modes = new ArrayList<String>();
+        for (String mode : System.getProperty("regus.harness.modes", join(MODES.keySet())).split(",")) {
+            if (!MODES.containsKey(mode.trim())) {
+                throw new IllegalArgumentException("Unknown mode " + mode + ", expected one of " + MODES.keySet());
+            }
+            modes.add(mode.trim());
+        }
+
+        MongoServer embeddedMongo = null;
+        String mongoHost;
+        int mongoPort;
+        if (mongoSetting.equals("embedded")) {
+            embeddedMongo = new MongoServer(new MemoryBackend());
+            InetSocketAddress address = embeddedMongo.bind();
+            mongoHost = address.getHostString();
+            mongoPort = address.getPort();
+        } else {
+            mongoHost = mongoSetting.substring(0, mongoSetting.lastIndexOf(':'));
+            mongoPort = Integer.parseInt(mongoSetting.substring(mongoSetting.lastIndexOf(':') + 1));
+        }
+        GaApiStandIn.Settings settings = GaApiStandIn.Settings.fromSystemProperties();
+        GaApiStandIn standIn = new GaApiStandIn(settings);
+        String rootUrl = standIn.start(0);
+        MongoClient mongo = new MongoClient(mongoHost, mongoPort);
+        System.out.println("Ingesting " + format.format(start) + " to " + format.format(end) + ", "
+                + settings.rowsPerDay + " rows per query and day, " + settings.latencyMillis + "+"
+                + settings.jitterMillis + " ms per request, into " + mongoHost + ":" + mongoPort);
+
+        Map<String, Run> runs = new LinkedHashMap<String, Run>();
+        try {
+            for (String mode : modes) {
+                resetDatabase(mongo.getDB(DATABASE));
+                long requestsBefore = standIn.getRequests();
+                long failuresBefore = standIn.getFailedRequests();
+                Run run = run(mode, rootUrl, mongoHost, mongoPort, format.format(start),
+                        format.format(end), timeoutMinutes);
+                run.requests = standIn.getRequests() - requestsBefore;
+                run.failedRequests = standIn.getFailedRequests() - failuresBefore;
+                runs.put(mode, run);
+                print(mode, run, days);
+            }
+        } finally {
+            mongo.close();
+            standIn.stop();
+            if (embeddedMongo != null) {
+                embeddedMongo.shutdownNow();
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%-14s %10s %10s %10s %9s %9s", "mode", "seconds", "rows", "rows/s",
+                "s/day", "requests"));
+        for (Map.Entry<String, Run> entry : runs.entrySet()) {
+            Run run = entry.getValue();
+            if (run.failure != null) {
+                System.out.println(String.format("%-14s %s", entry.getKey(), run.failure));
+                continue;
+            }
+            System.out.println(String.format("%-14s %10.1f %10d %10.0f %9.2f %9d", entry.getKey(), run.seconds,
+                    run.rows, run.rows / run.seconds, run.seconds / days, run.requests));
+        }
+    }
+
+    /**
+     * The outcome of one mode.
+     */
+    private static class Run {
+        double seconds;
+        long rows;
+        long requests;
+        long failedRequests;
+        String failure;
+        File log;
+        // stage -> total millis over all queries and days
+        final Map<String, Double> stageMillis = new LinkedHashMap<String, Double>();
+        final Map<String, Long> stageItems = new LinkedHashMap<String, Long>();
+    }
+
+    private static Run run(String mode, String rootUrl, String mongoHost, int mongoPort, String startDate,
+                           String endDate, long timeoutMinutes) throws IOException, InterruptedException {
+        Run run = new Run();
+        File metricsFile = File.createTempFile("ingest-metrics-" + mode + "-", ".json");
+        metricsFile.delete();
+        run.log = File.createTempFile("ingest-" + mode + "-", ".log");
+
+        List<String> command = new ArrayList<String>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("regus.") && !name.startsWith("regus.harness.") && !name.startsWith("regus.standIn.")) {
+                command.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        command.add("-Dregus.api.rootUrl=" + rootUrl);
+        command.add("-Dregus.mongo.host=" + mongoHost);
+        command.add("-Dregus.mongo.port=" + mongoPort);
+        command.add("-Dregus.mongo.db=" + DATABASE);
+        command.add("-Dregus.metrics.file=" + metricsFile.getPath());
+        command.add("-Dregus.metrics.jmx=false");
+        for (String setting : MODES.get(mode)) {
+            command.add(setting);
+        }
+        command.add(CoreReportingApiReferenceSample.class.getName());
+        command.add(startDate);
+        command.add(endDate);
+
+        System.out.println(mode + ": running, output in " + run.log);
+        long started = System.nanoTime();
+        Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(run.log).start();
+        boolean exited = process.waitFor(timeoutMinutes, TimeUnit.MINUTES);
+        run.seconds = (System.nanoTime() - started) / 1e9;
+        if (!exited) {
+            process.destroy();
+            process.waitFor();
+            run.failure = "timed out after " + timeoutMinutes + " minutes, see " + run.log;
+            return run;
+        }
+        // the sample reports its errors without an exit code, it failed if it wrote no metrics
+        if (!metricsFile.isFile()) {
+            run.failure = "failed, see " + run.log;
+            return run;
+        }
+        readMetrics(metricsFile, run);
+        metricsFile.delete();
+        return run;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void readMetrics(File metricsFile, Run run) throws IOException {
+        InputStream in = new FileInputStream(metricsFile);
+        Map<String, Object> summary;
+        try {
+            summary = new JacksonFactory().fromInputStream(in, Map.class);
+        } finally {
+            in.close();
+        }
+        Map<String, Object> queries = (Map<String, Object>) summary.get("queries");
+        for (Object query : queries.values()) {
+            Map<String, Object> total = (Map<String, Object>) ((Map<String, Object>) query).get("total");
+            for (Map.Entry<String, Object> stage : total.entrySet()) {
+                Map<String, Object> values = (Map<String, Object>) stage.getValue();
+                double millis = ((BigDecimal) values.get("totalMillis")).doubleValue();
+                long items = ((BigDecimal) values.get("items")).longValue();
+                Double millisSoFar = run.stageMillis.get(stage.getKey());
+                Long itemsSoFar = run.stageItems.get(stage.getKey());
+                run.stageMillis.put(stage.getKey(), millisSoFar == null ? millis : millisSoFar + millis);
+                run.stageItems.put(stage.getKey(), itemsSoFar == null ? items : itemsSoFar + items);
+            }
+        }
+        // every row ingested is transformed once
+        Long rows = run.stageItems.get("transform");
+        run.rows = rows == null ? 0 : rows;
+    }
+
+    private static void print(String mode, Run run, int days) {
+        if (run.failure != null) {
+            System.out.println(mode + ": " + run.failure);
+            return;
+        }
+        System.out.println(String.format("%s: %d rows in %.1f s, %.0f rows/s, %.2f s per day, %d requests, %d failed",
+                mode, run.rows, run.seconds, run.rows / run.seconds, run.seconds / days, run.requests,
+                run.failedRequests));
+        for (Map.Entry<String, Double> stage : run.stageMillis.entrySet()) {
+            System.out.println(String.format("  %-9s %12.1f ms %10d items", stage.getKey(), stage.getValue(),
+                    run.stageItems.get(stage.getKey())));
+        }
+    }
+
+    /**
+     * Empties the database and loads {@code center_mapping} from the fixtures.
+     */
+    private static void resetDatabase(DB db) throws IOException {
+        db.dropDatabase();
+        DBCollection centerMapping = db.getCollection("center_mapping");
+        for (Map.Entry<String, String> centre : Fixtures.centreIds().entrySet()) {
+            centerMapping.insert(new BasicDBObject("CentreURLName", centre.getKey())
+                    .append("CentreID", Integer.parseInt(centre.getValue())));
+        }
+    }
+
+    private static String join(Iterable<String> values) {
+        StringBuilder joined = new StringBuilder();
+        for (String value : values) {
+            if (joined.length() > 0) {
+                joined.append(',');
+            }
+            joined.append(value);
+        }
+        return joined.toString();
+    }
+}
@@ -0,0 +1,89 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.services.analytics.model.GaData;
+import com.mongodb.DBObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the per-row transform of the visit attributes, {@link VisitAttributesRows#row}, from a
+ * row of a recorded page to the document handed to the writer. Each operation is one row; the rows of
+ * {@code visit_attributes_page.json} are taken in turn.
+ * <p/>
+ * The documents go to an in-memory sink that keeps a batch of them, like {@link BufferedBulkWriter}
+ * does, and drops the batch instead of sending it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VisitAttributesRowsBenchmark {
+    private static final int BATCH_SIZE = 1000;
+
+    private List<List<String>> rows;
+    private VisitAttributesRows visitAttributes;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        GaData page = Fixtures.gaData("visit_attributes_page.json");
+        rows = page.getRows();
+        DocumentSink inMemory = new DocumentSink() {
+            private final List<DBObject> batch = new ArrayList<DBObject>(BATCH_SIZE);
+
+            public void add(Date day, DBObject document) {
+                if (batch.size() == BATCH_SIZE) {
+                    batch.clear();
+                }
+                batch.add(document);
+            }
+
+            public void flush() {
+                batch.clear();
+            }
+
+            public void close() {
+                batch.clear();
+            }
+
+            public long getWrittenCount() {
+                return 0;
+            }
+
+            public long getFailedCount() {
+                return 0;
+            }
+        };
+        Date d = new SimpleDateFormat("yyyy-MM-dd").parse("2015-06-01");
+        visitAttributes = new VisitAttributesRows(inMemory, new VisitAttributesDailyRollup(d), new PagePathNormalizer(10000),
+                new CenterMappingIndex(Fixtures.centreIds()), null, new IngestMetrics(false).stages("visit_attributes", d));
+        if (!visitAttributes.startPage(page)) {
+            throw new IOException("The visit attributes fixture has no rows to write");
+        }
+    }
+
+    @Benchmark
+    public void row() {
+        visitAttributes.row(rows.get(next));
+        if (++next == rows.size()) {
+            next = 0;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.google.api.services.samples.analytics.cmdline;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.analytics.model.GaData;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.mortbay.util.ajax.JSON;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Measures the JSON handling of the visited companies: turning a {@code ga:dimension20} value into
+ * its document, with {@link DemandbaseParser} and with the Jetty parsing it replaced. Each operation
+ * is one value; the values of the corpus are taken in turn.
+ * <p/>
+ * The corpus is {@code visited_companies_dimension20.txt} unless the {@code corpus} parameter names
+ * a text file with one value per line, or a {@link GaResponseCache} directory, from whose recorded
+ * visited companies responses the values are taken, e.g. {@code -p corpus=/data/cache}. Values the
+ * Jetty parser cannot handle are left out, and the setup fails unless both parsers produce the same
+ * documents for the rest. Run with {@code -prof gc} for the bytes allocated per value.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VisitedCompaniesBenchmark {
+    @Param("")
+    public String corpus;
+
+    private List<String> values;
+    private DemandbaseParser parser;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        parser = new DemandbaseParser();
+        values = new ArrayList<String>();
+        for (String value : corpus.length() == 0 ? Fixtures.lines("visited_companies_dimension20.txt") : readCorpus(new File(corpus))) {
+            // the old code failed the whole run on values that are not a JSON object
+            DBObject expected;
+            try {
+                expected = parseWithJetty(value);
+            } catch (RuntimeException e) {
+                continue;
+            }
+            DBObject actual = parser.parse(value);
+            if (!String.valueOf(canonical(expected)).equals(String.valueOf(canonical(actual)))) {
+                throw new IllegalStateException("Parsers disagree on " + value + "\n  jetty: " + canonical(expected)
+                        + "\n  new:   " + canonical(actual));
+            }
+            values.add(value);
+        }
+        if (values.isEmpty()) {
+            throw new IllegalStateException("No values in the corpus " + corpus);
+        }
+    }
+
+    @Benchmark
+    public DBObject demandbaseParser() {
+        return parser.parse(nextValue());
+    }
+
+    @Benchmark
+    public DBObject jetty() {
+        return parseWithJetty(nextValue());
+    }
+
+    /**
+     * The parsing done by {@code insertVisitedCompaniesData} before {@link DemandbaseParser}.
+     */
+    private static DBObject parseWithJetty(String value) {
+        DBObject dbObject = new BasicDBObject((Map<?, ?>) JSON.parse(value));
+        dbObject.removeField("ip");
+        return dbObject;
+    }
+
+    private String nextValue() {
+        String value = values.get(next);
+        if (++next == values.size()) {
+            next = 0;
+        }
+        return value;
+    }
+
+    /**
+     * Turns a parsed value into sorted maps and lists, so both parsers' output can be compared.
+     */
+    private static Object canonical(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<String, Object>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                sorted.put(String.valueOf(entry.getKey()), canonical(entry.getValue()));
+            }
+            return sorted;
+        }
+        if (value instanceof Object[]) {
+            value = Arrays.asList((Object[]) value);
+        }
+        if (value instanceof List) {
+            List<Object> list = new ArrayList<Object>();
+            for (Object element : (List<?>) value) {
+                list.add(canonical(element));
+            }
+            return list;
+        }
+        return value;
+    }
+
+    private static List<String> readCorpus(File file) throws IOException {
+        if (file.isDirectory()) {
+            return readRecordedResponses(file);
+        }
+        List<String> corpus = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().length() > 0) {
+                    corpus.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return corpus;
+    }
+
+    private static List<String> readRecordedResponses(File cacheDir) throws IOException {
+        List<String> corpus = new ArrayList<String>();
+        JacksonFactory jsonFactory = new JacksonFactory();
+        File[] entries = cacheDir.listFiles();
+        for (File entry : entries == null ? new File[0] : entries) {
+            if (!entry.getName().endsWith(".json.gz")) {
+                continue;
+            }
+            InputStream in = new GZIPInputStream(new FileInputStream(entry));
+            GaData gaData;
+            try {
+                gaData = jsonFactory.fromInputStream(in, GaData.class);
+            } finally {
+                in.close();
+            }
+            if (gaData.getColumnHeaders() == null || gaData.getRows() == null) {
+                continue;
+            }
+            for (int i = 0; i < gaData.getColumnHeaders().size(); i++) {
+                if ("ga:dimension20".equals(gaData.getColumnHeaders().get(i).getName())) {
+                    for (List<String> rowValues : gaData.getRows()) {
+                        corpus.add(rowValues.get(i));
+                    }
+                }
+            }
+        }
+        return corpus;
+    }
+}
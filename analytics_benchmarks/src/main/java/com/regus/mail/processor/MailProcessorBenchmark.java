@@ -0,0 +1,77 @@
+package com.regus.mail.processor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how a form fill mail is turned into the fields stored in {@code mail}:
+ * {@link MailProcessor#processMessageContent} for the body and
+ * {@link MailProcessor#getCountryAndProductFromMsgSubject} for the subject. The messages are read
+ * from {@code /fixtures/mail} and taken in turn, one per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailProcessorBenchmark {
+    private static final String[] FIXTURES = {"form-fill-1.eml", "form-fill-2.eml", "form-fill-3.eml"};
+
+    private MimeMessage[] messages;
+    private String[] subjects;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        Session session = Session.getInstance(new Properties());
+        messages = new MimeMessage[FIXTURES.length];
+        subjects = new String[FIXTURES.length];
+        for (int i = 0; i < FIXTURES.length; i++) {
+            InputStream in = MailProcessorBenchmark.class.getResourceAsStream("/fixtures/mail/" + FIXTURES[i]);
+            if (in == null) {
+                throw new IOException("No fixture " + FIXTURES[i]);
+            }
+            try {
+                messages[i] = new MimeMessage(session, in);
+            } finally {
+                in.close();
+            }
+            subjects[i] = messages[i].getSubject();
+        }
+    }
+
+    @Benchmark
+    public Map<String, String> processMessageContent() {
+        return MailProcessor.processMessageContent(messages[nextIndex()]);
+    }
+
+    @Benchmark
+    public Map<String, String> getCountryAndProductFromMsgSubject() {
+        return MailProcessor.getCountryAndProductFromMsgSubject(subjects[nextIndex()]);
+    }
+
+    private int nextIndex() {
+        int index = next;
+        if (++next == FIXTURES.length) {
+            next = 0;
+        }
+        return index;
+    }
+}